@@ -8,74 +8,213 @@ import java.io.*;
 // Package for socket related stuff
 import java.net.*;
 
+// Packages for keeping several messages in flight (--window)
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
 /*
  * This class does all the client's job
  * It connects to the server at the given address
  * and sends messages typed by the user to the server
+ *
+ * With --window N it sends up to N messages before the first reply
+ * comes back (pipelining); replies come back in order, so each one is
+ * matched with the oldest message still waiting. With --file the
+ * messages are read from a file instead of the keyboard
+ *
+ * At the end it prints messages per second and round trip times
  */
 public class OneWayMesgClient {
+	// Messages sent and not answered yet, at most window of them
+	private static Semaphore window;
+
+	// Send times of those messages, oldest first
+	private static final ConcurrentLinkedQueue<Long> sentAt = new ConcurrentLinkedQueue<>();
+
+	// Round trip time of every answered message, in nanoseconds
+	private static long[] rtts = new long[1024];
+	private static int answered;
+
+	// Set when the server closes the connection
+	private static volatile boolean serverClosed;
+
 	/*
 	 * The client program starts from here
 	 */
 	public static void main(String args[])
 	{
 		// Client needs server's contact information
-		if (args.length != 2) {
-			System.out.println("usage: java OneWayMesgClient <server name> <server port>");
-			System.exit(1);
+		if (args.length < 2) {
+			usage();
 		}
 
 		// Get server's whereabouts
 		String serverName = args[0];
 		int serverPort = Integer.parseInt(args[1]);
 
+		// How many messages may be in flight, and where they come from
+		int windowSize = 1;
+		String inputFile = null;
+		try {
+			for (int i = 2; i < args.length; i++) {
+				if (args[i].equals("--window")) {
+					windowSize = Integer.parseInt(args[++i]);
+				}
+				else if (args[i].equals("--file")) {
+					inputFile = args[++i];
+				}
+				else {
+					usage();
+				}
+			}
+		}
+		catch (RuntimeException e) {
+			usage();
+		}
+		if (windowSize < 1) {
+			usage();
+		}
+		window = new Semaphore(windowSize);
+
 		// Be prepared to catch socket related exceptions
 		try {
 			// Connect to the server at the given host and port
 			Socket sock = new Socket(serverName, serverPort);
+			sock.setTcpNoDelay(true);
 			System.out.println(
 					"Connected to server at ('" + serverName + "', '" + serverPort + "'");
 
-			// Prepare to write to server with auto flush on
+			// Prepare to write to server, flushed by hand so a window
+			// of messages can go out in one write
 			PrintWriter toServerWriter =
-					new PrintWriter(sock.getOutputStream(), true);
+					new PrintWriter(new BufferedWriter(new OutputStreamWriter(sock.getOutputStream())));
+
+			// Prepare to read from keyboard, or from the file
+			BufferedReader fromUserReader = new BufferedReader(inputFile == null
+					? new InputStreamReader(System.in) : new FileReader(inputFile));
+
+			BufferedReader fromServerReader = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+
+			// Replies are read on their own thread, so sending never waits for them
+			// Printing thousands of replies from a file would only slow it down
+			boolean printReplies = inputFile == null;
+			Thread replyReader = new Thread(() -> readReplies(fromServerReader, printReplies));
+			replyReader.start();
 
-			// Prepare to read from keyboard
-			BufferedReader fromUserReader = new BufferedReader(
-					new InputStreamReader(System.in));
-			
-			BufferedReader fromServerReader = new BufferedReader(new InputStreamReader(sock.getInputStream())); 
+			long start = System.nanoTime();
+			int sent = 0;
 
 			// Keep doing till we get EOF from user
-			while (true) {
+			while (!serverClosed) {
 				// Read a line from the keyboard
 				String line = fromUserReader.readLine();
 
 				// If we get null, it means user is done
 				if (line == null) {
-					System.out.println("Closing connection");
+					break;
+				}
+
+				// Wait for room in the window, sending what we have meanwhile
+				if (!window.tryAcquire()) {
+					toServerWriter.flush();
+					window.acquire();
+				}
+				if (serverClosed) {
 					break;
 				}
 
 				// Send the line to the server
+				sentAt.add(System.nanoTime());
 				toServerWriter.println(line);
+				sent++;
 
-				//MY CODE 
-				String message = fromServerReader.readLine();
-				if(message == null) {
-					System.out.println("Closing connection"); 
-					break; 
+				// Send now unless more lines are ready to go with it
+				if (!fromUserReader.ready()) {
+					toServerWriter.flush();
 				}
-				System.out.println("Server: "+ message);
 			}
+			toServerWriter.flush();
 
+			// Wait for the replies still on their way
+			window.acquire(windowSize);
+			long elapsed = System.nanoTime() - start;
+			System.out.println("Closing connection");
 
 			// close the socket and exit
 			toServerWriter.close();
 			sock.close();
+			replyReader.join();
+			report(sent, elapsed, windowSize);
 		}
 		catch(Exception e) {
 			System.out.println(e);
 		}
 	}
+
+	private static void usage()
+	{
+		System.out.println("usage: java OneWayMesgClient <server name> <server port> [--window N] [--file messages.txt]");
+		System.exit(1);
+	}
+
+	// The reply thread starts here, each reply answers the oldest message in flight
+	private static void readReplies(BufferedReader fromServerReader, boolean print)
+	{
+		try {
+			while (true) {
+				String message = fromServerReader.readLine();
+				if (message == null) {
+					break;
+				}
+				Long sendTime = sentAt.poll();
+				if (sendTime != null) {
+					record(System.nanoTime() - sendTime);
+				}
+				if (print) {
+					System.out.println("Server: " + message);
+				}
+				window.release();
+			}
+		}
+		catch (IOException e) {
+			// The socket was closed, normally by us after the last reply
+		}
+
+		// Let the sender stop if it is still going, and stop waiting for
+		// replies that will never come
+		serverClosed = true;
+		window.release(sentAt.size() + 1);
+	}
+
+	private static void record(long rtt)
+	{
+		if (answered == rtts.length) {
+			rtts = Arrays.copyOf(rtts, rtts.length * 2);
+		}
+		rtts[answered++] = rtt;
+	}
+
+	// Throughput and round trip time percentiles of the whole run
+	private static void report(int sent, long elapsedNanos, int windowSize)
+	{
+		if (sent == 0) {
+			return;
+		}
+		long[] sorted = Arrays.copyOf(rtts, answered);
+		Arrays.sort(sorted);
+		System.out.printf("%d messages, %d answered, window %d, %.2f s, %.0f messages/s%n",
+				sent, answered, windowSize, elapsedNanos / 1e9, sent / (elapsedNanos / 1e9));
+		if (answered > 0) {
+			System.out.printf("round trip ms: p50 %.3f  p90 %.3f  p99 %.3f  p999 %.3f  max %.3f%n",
+					percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99),
+					percentile(sorted, 0.999), sorted[sorted.length - 1] / 1e6);
+		}
+	}
+
+	private static double percentile(long[] sorted, double fraction)
+	{
+		int index = (int) Math.ceil(fraction * sorted.length) - 1;
+		return sorted[Math.max(index, 0)] / 1e6;
+	}
 }
@@ -8,25 +8,51 @@ import java.io.*;
 // Package for socket related stuff
 import java.net.*;
 
+// Packages for serving many clients from one thread (--multi)
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+
 /*
  * This class does all the server's job
  * It receives the connection from client
  * and prints messages sent from the client
+ *
+ * With --multi it keeps listening and serves any number of clients at
+ * once as an echo/ack service: every line a client sends is answered
+ * with the same line, in order. One selector thread does all of it
  */
 public class OneWayMesgServer {
+	// Longest line accepted in --multi mode
+	private static final int MAX_LINE = 8192;
+
+	// Replies a client may leave unread before we stop reading its requests
+	private static final int MAX_PENDING = 64 * 1024;
+
 	/*
 	 * The server program starts from here
 	 */
 	public static void main(String args[]) {
 		// Server needs the port number to listen on
-		if (args.length != 1) {
-			System.out.println("usage: java OneWayMesgServer <port>");
+		if (args.length < 1 || args.length > 2
+				|| (args.length == 2 && !args[1].equals("--multi"))) {
+			System.out.println("usage: java OneWayMesgServer <port> [--multi]");
 			System.exit(1);
 		}
 
 		// Get the port on which server should listen */
 		int serverPort = Integer.parseInt(args[0]);
 
+		if (args.length == 2) {
+			try {
+				serveMany(serverPort);
+			}
+			catch(Exception e) {
+				System.out.println(e);
+			}
+			return;
+		}
+
 		// Be prepared to catch socket related exceptions
 		try {
 			// Create a server socket with the given port
@@ -84,4 +110,142 @@ public class OneWayMesgServer {
 			System.out.println(e);
 		}
 	}
+
+	/*
+	 * --multi mode: accept clients and answer their lines, all on this thread
+	 * The selector tells us which clients have something to read or room
+	 * to write, so no client ever holds up another
+	 */
+	private static void serveMany(int serverPort) throws IOException {
+		Selector selector = Selector.open();
+
+		// Listen without blocking, with room for a burst of connection requests
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(serverPort), 1024);
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		System.out.println("Waiting for clients ...");
+
+		while (true) {
+			selector.select();
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+
+				if (key.isAcceptable()) {
+					// Take every client that is waiting
+					SocketChannel channel;
+					while ((channel = serverChannel.accept()) != null) {
+						InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+						System.out.println("Connected to a client at ('" +
+								remote.getAddress().getHostAddress() + "', '" + remote.getPort() + "')");
+						channel.configureBlocking(false);
+						channel.socket().setTcpNoDelay(true);
+						SelectionKey clientKey = channel.register(selector, SelectionKey.OP_READ);
+						clientKey.attach(new Connection(channel, clientKey));
+					}
+					continue;
+				}
+
+				Connection connection = (Connection) key.attachment();
+				try {
+					if (key.isReadable()) {
+						connection.read();
+					}
+					if (key.isValid() && key.isWritable()) {
+						connection.write();
+					}
+				}
+				catch (IOException e) {
+					System.out.println("Client error: " + e.getMessage());
+					connection.close();
+				}
+			}
+		}
+	}
+
+	// One client in --multi mode
+	private static class Connection {
+		private final SocketChannel channel;
+		private final SelectionKey key;
+
+		// Bytes read but not a whole line yet
+		private final ByteBuffer in = ByteBuffer.allocate(MAX_LINE);
+
+		// Replies not written yet, grows if the client is slow to read them
+		private ByteBuffer out = ByteBuffer.allocate(MAX_LINE);
+
+		private long messages;
+
+		// Set once the client has sent all it will (closed its side)
+		private boolean inputDone;
+
+		Connection(SocketChannel channel, SelectionKey key) {
+			this.channel = channel;
+			this.key = key;
+		}
+
+		// Every whole line read is a request, its reply is the same line
+		void read() throws IOException {
+			if (channel.read(in) < 0) {
+				// It may still be reading, close once its replies are out
+				inputDone = true;
+				write();
+				return;
+			}
+			in.flip();
+			int start = in.position();
+			for (int i = start; i < in.limit(); i++) {
+				if (in.get(i) == '\n') {
+					reply(in.slice(start, i + 1 - start));
+					start = i + 1;
+					messages++;
+				}
+			}
+			in.position(start);
+			in.compact();
+			if (!in.hasRemaining()) {
+				System.out.println("Client line too long");
+				close();
+				return;
+			}
+			write();
+		}
+
+		private void reply(ByteBuffer line) {
+			if (out.remaining() < line.remaining()) {
+				ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + line.remaining()));
+				out.flip();
+				bigger.put(out);
+				out = bigger;
+			}
+			out.put(line);
+		}
+
+		// Send what we can, then only read more once the client keeps up
+		void write() throws IOException {
+			out.flip();
+			channel.write(out);
+			out.compact();
+			int pending = out.position();
+			if (inputDone && pending == 0) {
+				close();
+				return;
+			}
+			key.interestOps((pending < MAX_PENDING && !inputDone ? SelectionKey.OP_READ : 0)
+					| (pending > 0 ? SelectionKey.OP_WRITE : 0));
+		}
+
+		void close() {
+			System.out.println("Client closed connection after " + messages + " messages");
+			key.cancel();
+			try {
+				channel.close();
+			}
+			catch (IOException e) {
+				// Nothing left to do with it
+			}
+		}
+	}
 }
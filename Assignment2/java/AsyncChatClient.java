@@ -0,0 +1,501 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Inflater;
+
+/*
+ * This class is the core of GroupChatClient, and can be used on its own
+ * One I/O thread does all the socket work on a non-blocking channel:
+ * what the server sends is split into lines ("sender: text", as a line
+ * client gets them) and put on a bounded inbound queue, what the program
+ * sends goes out from an outbound queue, and heartbeats are answered there
+ *
+ * Nothing waits on a slow side, it is told instead
+ * - When the inbound queue is full the I/O thread stops reading, so the
+ *   socket buffers and then the server's queue for this client fill up
+ *   (the server's --slow policy decides what happens next). Reading starts
+ *   again once the consumer has taken half the queue. pausedReads() says
+ *   how often that happened
+ * - send() returns false instead of waiting when more than maxOutboundBytes
+ *   are still unsent
+ *
+ * The consumer takes lines in batches with drain(), so a console or a UI
+ * can show a whole batch at once. Nothing here calls System.exit
+ *
+ * With requestSession() the server numbers every message for this client
+ * (see ChatSession) and the I/O thread acknowledges them, every ACK_EVERY
+ * messages and ACK_DELAY_MILLIS after one arrived at the latest. A program that
+ * loses the connection passes sessionId() and lastSeq() to resume() on a
+ * new one and gets only what it missed
+ */
+public class AsyncChatClient implements Closeable {
+    // Unsent bytes send() allows before it refuses
+    public static final long DEFAULT_MAX_OUTBOUND = 1 << 20;
+
+    // Unsent bytes close() waits for at most this long
+    private static final long CLOSE_LINGER_MILLIS = 1000;
+
+    // Acknowledge after this many session messages, or this long after one arrived at most
+    private static final int ACK_EVERY = 32;
+    private static final long ACK_DELAY_MILLIS = 200;
+
+    // Put on the inbound queue after the last line, compared by identity
+    private static final String END = new String("end");
+
+    private final SocketChannel channel;
+    private final boolean binary;
+    private final Selector selector;
+    private final SelectionKey key;
+
+    private final BlockingQueue<String> inbound;
+    private final int resumeBelow;
+
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicLong outboundBytes = new AtomicLong();
+    private final long maxOutboundBytes;
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+
+    // I/O thread only: bytes not yet split into lines or frames (write mode),
+    // lines split off while the inbound queue was full, and the buffer being written
+    private ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private final ArrayDeque<String> overflow = new ArrayDeque<>();
+    private ByteBuffer writing;
+    private final Inflater inflater = new Inflater(true);
+
+    private volatile boolean readsPaused;
+    private volatile long pausedReads;
+    private volatile boolean connected = true;
+    private volatile boolean closed;
+    private volatile IOException cause;
+
+    // Resumable session: its id once the server gave one, the sequence number
+    // of the last message received, and the username to log in with if a
+    // resume is refused
+    private volatile String sessionId;
+    private volatile long lastSeq;
+    private volatile String fallbackName;
+
+    // I/O thread only: the number announced for the next message (-1 for
+    // none), and the last number acknowledged and when
+    private long nextSeq = -1;
+    private long ackedSeq;
+    private long ackedAt;
+
+    // Consumer only, set once it has taken END
+    private boolean ended;
+
+    private AsyncChatClient(SocketChannel channel, boolean binary, int inboundCapacity, long maxOutboundBytes)
+            throws IOException {
+        this.channel = channel;
+        this.binary = binary;
+        this.inbound = new ArrayBlockingQueue<>(Math.max(inboundCapacity, 2));
+        this.resumeBelow = Math.max(inboundCapacity, 2) / 2;
+        this.maxOutboundBytes = maxOutboundBytes;
+
+        channel.configureBlocking(false);
+        this.selector = Selector.open();
+        this.key = channel.register(selector, SelectionKey.OP_READ);
+
+        Thread thread = new Thread(this::run, "chat-io");
+        thread.start();
+    }
+
+    // Connect and agree on the protocol; hello(username) has to be sent first
+    public static AsyncChatClient connect(String host, int port, boolean binary, int inboundCapacity)
+            throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        try {
+            channel.socket().setTcpNoDelay(true);
+            if (binary) {
+                // Still blocking here, the preamble reply is read byte exact
+                ChatFrame.sendPreamble(Channels.newInputStream(channel), Channels.newOutputStream(channel));
+            }
+            AsyncChatClient client = new AsyncChatClient(channel, binary, inboundCapacity, DEFAULT_MAX_OUTBOUND);
+            // A pong nobody asked for tells the server this client answers pings
+            client.enqueue(client.control(ChatFrame.PONG, "", "/pong"), true);
+            return client;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    // The username, queued whatever the outbound limit
+    public void hello(String username) throws IOException {
+        enqueue(encode(ChatFrame.HELLO, username), true);
+    }
+
+    // Ask the server for a resumable session, after hello()
+    public void requestSession() throws IOException {
+        enqueue(control(ChatFrame.SESSION, "", "/session"), true);
+    }
+
+    // Instead of hello() on a new connection: take over the session of a
+    // lost one, which had received every message up to lastSeq. If the server
+    // no longer has it, log in as username and ask for a new session
+    public void resume(String sessionId, long lastSeq, String username) throws IOException {
+        this.sessionId = sessionId;
+        this.lastSeq = lastSeq;
+        this.fallbackName = username;
+        enqueue(control(ChatFrame.SESSION, sessionId + " " + lastSeq, "/resume " + sessionId + " " + lastSeq), true);
+    }
+
+    // The session's id, null if there is none
+    public String sessionId() {
+        return sessionId;
+    }
+
+    // Sequence number of the last session message received
+    public long lastSeq() {
+        return lastSeq;
+    }
+
+    // Queue one chat message, false if too much is unsent already
+    // May be called from any thread
+    public boolean send(String text) throws IOException {
+        return enqueue(encode(ChatFrame.MESSAGE, text), false);
+    }
+
+    private ByteBuffer encode(byte type, String text) {
+        if (binary) {
+            return ChatFrame.encode(type, "", text);
+        }
+        return ByteBuffer.wrap((text + "\n").getBytes(ChatConnection.CHARSET));
+    }
+
+    // A protocol message: a frame of that type, or a line for line clients
+    private ByteBuffer control(byte type, String payload, String line) {
+        if (binary) {
+            return ChatFrame.encode(type, "", payload);
+        }
+        return ByteBuffer.wrap((line + "\n").getBytes(ChatConnection.CHARSET));
+    }
+
+    private boolean enqueue(ByteBuffer bytes, boolean force) throws IOException {
+        // Heartbeat answers still go out while close() flushes
+        if (!connected || (closed && !force)) {
+            throw new IOException("not connected");
+        }
+        long queued = outboundBytes.get();
+        if (!force && queued > 0 && queued + bytes.remaining() > maxOutboundBytes) {
+            return false;
+        }
+        outboundBytes.addAndGet(bytes.remaining());
+        outbound.add(bytes);
+        if (writeScheduled.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+        return true;
+    }
+
+    /*
+     * Move up to max received lines into the collection, waiting up to the
+     * timeout for the first one. Returns how many were moved, or -1 once the
+     * connection has ended (or was closed) and every line has been taken
+     */
+    public int drain(Collection<? super String> into, int max, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        if (ended || closed) {
+            return -1;
+        }
+        int count = 0;
+        String line = inbound.poll(timeout, unit);
+        while (line != null) {
+            if (line == END) {
+                ended = true;
+                break;
+            }
+            into.add(line);
+            if (++count == max) {
+                break;
+            }
+            line = inbound.poll();
+        }
+        // The I/O thread waits for room before it reads again
+        if (readsPaused && inbound.size() < resumeBelow) {
+            selector.wakeup();
+        }
+        return count == 0 && ended ? -1 : count;
+    }
+
+    // Whether reading is stopped right now because the consumer is behind
+    public boolean isBackpressured() {
+        return readsPaused;
+    }
+
+    // How many times reading stopped for a full inbound queue
+    public long pausedReads() {
+        return pausedReads;
+    }
+
+    public long getOutboundBytes() {
+        return outboundBytes.get();
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    // Whether close() was called
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // Why the connection ended, null if it has not or the server closed it normally
+    public IOException cause() {
+        return cause;
+    }
+
+    // Send what is still queued (waiting a second at most), then disconnect
+    // A session ends with it, leaving on purpose is not something to resume
+    public void close() {
+        if (sessionId != null && connected && !closed) {
+            try {
+                enqueue(encode(ChatFrame.MESSAGE, "/quit"), true);
+            } catch (IOException e) {
+                // Gone already, the session expires on the server
+            }
+        }
+        closed = true;
+        selector.wakeup();
+    }
+
+    // The I/O thread starts here
+    private void run() {
+        long closeDeadline = 0;
+        try {
+            while (true) {
+                if (closed) {
+                    if (closeDeadline == 0) {
+                        closeDeadline = System.currentTimeMillis() + CLOSE_LINGER_MILLIS;
+                    }
+                    if ((writing == null && outbound.isEmpty()) || System.currentTimeMillis() >= closeDeadline) {
+                        break;
+                    }
+                    selector.select(Math.max(1, closeDeadline - System.currentTimeMillis()));
+                } else {
+                    // Wake up in time to acknowledge what came last
+                    selector.select(lastSeq > ackedSeq ? ACK_DELAY_MILLIS : 0);
+                }
+                boolean ready = selector.selectedKeys().remove(key);
+
+                if (readsPaused && inbound.size() < resumeBelow) {
+                    resumeReads();
+                }
+                if (ready && key.isReadable() && !read()) {
+                    break;
+                }
+                acknowledge();
+                writeScheduled.set(false);
+                write();
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                cause = e;
+            }
+        } catch (RuntimeException e) {
+            // Something the server sent that we could not handle; end like a
+            // lost connection, so the consumer still gets END
+            cause = new IOException("cannot handle what the server sent: " + e, e);
+        }
+        connected = false;
+        inflater.end();
+        try {
+            selector.close();
+            channel.close();
+        } catch (IOException e) {
+            // Nothing left to do with it
+        }
+
+        // Hand over what was read before the end, then mark the end
+        overflow.add(END);
+        while (!closed && !overflow.isEmpty()) {
+            try {
+                if (inbound.offer(overflow.peek(), 100, TimeUnit.MILLISECONDS)) {
+                    overflow.poll();
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    // Read what the socket has, false at end of stream
+    private boolean read() throws IOException {
+        if (channel.read(readBuffer) < 0) {
+            return false;
+        }
+        readBuffer.flip();
+        int needed = binary ? readFrames() : readLines();
+        readBuffer.compact();
+
+        // A partial line or frame does not fit, make room for it
+        if (needed > readBuffer.capacity()) {
+            ByteBuffer bigger = ByteBuffer.allocateDirect(needed);
+            readBuffer.flip();
+            bigger.put(readBuffer);
+            readBuffer = bigger;
+        }
+        return true;
+    }
+
+    // Returns the buffer size the unfinished line at the end needs, 0 if it still fits
+    private int readLines() throws IOException {
+        String line;
+        while ((line = GroupChatReactor.nextLine(readBuffer)) != null) {
+            // Heartbeat from the server, not a chat message
+            if (line.equals("/ping")) {
+                enqueue(encode(ChatFrame.PONG, "/pong"), true);
+                continue;
+            }
+            // Session numbering, see ChatSession
+            if (line.startsWith("/seq ")) {
+                nextSeq = parseSeq(line.substring(5));
+                continue;
+            }
+            if (line.startsWith("/session")) {
+                sessionAnswered(line.substring(8).trim());
+                continue;
+            }
+            deliver(line);
+            received();
+        }
+        return readBuffer.remaining() == readBuffer.capacity() ? readBuffer.capacity() * 2 : 0;
+    }
+
+    // Returns the buffer size the unfinished frame at the end needs
+    private int readFrames() throws IOException {
+        while (true) {
+            int size = ChatFrame.frameSize(readBuffer);
+            if (size < 0 || readBuffer.remaining() < size) {
+                return size;
+            }
+            ByteBuffer frame = readBuffer.slice(readBuffer.position(), size);
+            readBuffer.position(readBuffer.position() + size);
+
+            byte type = ChatFrame.type(frame);
+            if (type == ChatFrame.MESSAGE) {
+                deliver(ChatFrame.text(ChatFrame.sender(frame)) + ": " + ChatFrame.text(ChatFrame.payload(frame)));
+                received();
+            } else if (type == ChatFrame.DEFLATED) {
+                byte[] text = Compression.inflate(ChatFrame.payload(frame), inflater);
+                deliver(ChatFrame.text(ChatFrame.sender(frame)) + ": " + new String(text, StandardCharsets.UTF_8));
+                received();
+            } else if (type == ChatFrame.SEQ) {
+                nextSeq = parseSeq(ChatFrame.text(ChatFrame.payload(frame)));
+            } else if (type == ChatFrame.SESSION) {
+                sessionAnswered(ChatFrame.text(ChatFrame.payload(frame)));
+            } else if (type == ChatFrame.PING) {
+                enqueue(encode(ChatFrame.PONG, ""), true);
+            } else if (type == ChatFrame.HISTORY) {
+                for (String line : ChatFrame.text(ChatFrame.payload(frame)).split("\n")) {
+                    deliver(line);
+                }
+            }
+        }
+    }
+
+    // A sequence number from the server, -1 (none) if it is not one
+    private static long parseSeq(String seq) {
+        try {
+            return Math.max(-1, Long.parseLong(seq.trim()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // A message arrived, the one the last sequence number was for
+    private void received() {
+        if (nextSeq >= 0) {
+            lastSeq = nextSeq;
+            nextSeq = -1;
+        }
+    }
+
+    // The server's answer to requestSession() or resume(): the session id,
+    // or empty when it has no session for us. A refused resume logs in again
+    private void sessionAnswered(String id) throws IOException {
+        String name = fallbackName;
+        fallbackName = null;
+        if (!id.isEmpty()) {
+            sessionId = id;
+            return;
+        }
+        sessionId = null;
+        lastSeq = 0;
+        ackedSeq = 0;
+        if (name != null) {
+            hello(name);
+            requestSession();
+        }
+    }
+
+    // Cumulative acknowledgement of session messages, see ACK_EVERY
+    private void acknowledge() throws IOException {
+        long seq = lastSeq;
+        if (sessionId == null || seq <= ackedSeq) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (seq - ackedSeq >= ACK_EVERY || now - ackedAt >= ACK_DELAY_MILLIS) {
+            enqueue(control(ChatFrame.ACK, Long.toString(seq), "/ack " + seq), true);
+            ackedSeq = seq;
+            ackedAt = now;
+        }
+    }
+
+    // Lines split off after the queue filled wait in overflow, at most
+    // one read's worth, and reading stops until the consumer catches up
+    private void deliver(String line) {
+        if (overflow.isEmpty() && inbound.offer(line)) {
+            return;
+        }
+        overflow.add(line);
+        if (!readsPaused) {
+            readsPaused = true;
+            pausedReads++;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    private void resumeReads() {
+        while (!overflow.isEmpty() && inbound.offer(overflow.peek())) {
+            overflow.poll();
+        }
+        if (overflow.isEmpty()) {
+            readsPaused = false;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    // Write as much as the socket takes, then wait for OP_WRITE if anything is left
+    private void write() throws IOException {
+        while (true) {
+            if (writing == null && (writing = outbound.poll()) == null) {
+                break;
+            }
+            outboundBytes.addAndGet(-channel.write(writing));
+            if (writing.hasRemaining()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            writing = null;
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+}
@@ -0,0 +1,242 @@
+import java.lang.ref.Cleaner;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * This class is a pool of direct ByteBuffers for connection I/O
+ * A connection borrows a buffer while it has bytes to work on and gives it
+ * back when it is done, so an idle connection holds no buffer memory and
+ * a busy server reuses the same few buffers instead of making new ones
+ *
+ * Buffers come in size classes, powers of two from MIN_SIZE to MAX_SIZE;
+ * asking for n bytes gives a buffer of the smallest class that fits.
+ * Each class keeps up to MAX_FREE_BYTES of free buffers, newest on top, so
+ * the buffer handed out next is the one most likely still in cache. A
+ * request bigger than MAX_SIZE gets a buffer of its own that is simply
+ * dropped when it comes back
+ *
+ * A buffer must be given back exactly once and not used after that.
+ * With debug on (--pool-debug on the server) every borrow remembers where
+ * it happened, and a buffer that is garbage collected without coming back
+ * is reported with that stack trace; giving one back twice is reported too.
+ * Debug costs a stack trace per borrow, so it is off by default
+ */
+public final class BufferPool {
+    public static final int MIN_SIZE = 4 * 1024;
+    public static final int MAX_SIZE = 1 << 20;
+
+    // Free bytes kept per size class, at least MIN_FREE buffers of any class
+    private static final int MAX_FREE_BYTES = 4 << 20;
+    private static final int MIN_FREE = 4;
+
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE / MIN_SIZE) + 1;
+    private static final SizeClass[] SIZE_CLASSES = new SizeClass[CLASSES];
+
+    static {
+        for (int i = 0; i < CLASSES; i++) {
+            SIZE_CLASSES[i] = new SizeClass(MIN_SIZE << i);
+        }
+    }
+
+    // Buffers of one size, and how many of them there are
+    private static final class SizeClass {
+        final int size;
+        final int maxFree;
+        final ConcurrentLinkedDeque<ByteBuffer> free = new ConcurrentLinkedDeque<>();
+        final AtomicInteger freeCount = new AtomicInteger();
+        final AtomicLong borrowed = new AtomicLong();
+
+        SizeClass(int size) {
+            this.size = size;
+            this.maxFree = Math.max(MIN_FREE, MAX_FREE_BYTES / size);
+        }
+    }
+
+    // Borrows served from a free list, buffers allocated for a class,
+    // buffers too big for any class, and leaks found in debug mode
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder allocations = new LongAdder();
+    private static final LongAdder unpooled = new LongAdder();
+    private static final LongAdder leaks = new LongAdder();
+
+    private static volatile boolean debug;
+
+    // Debug only: buffers out on loan, by identity, without keeping them alive
+    private static final ConcurrentHashMap<IdentityKey, Borrow> loans = new ConcurrentHashMap<>();
+    private static Cleaner cleaner;
+
+    private BufferPool() {
+    }
+
+    // Turn leak checking on, for buffers borrowed from now on
+    public static synchronized void setDebug(boolean on) {
+        if (on && cleaner == null) {
+            cleaner = Cleaner.create();
+        }
+        debug = on;
+    }
+
+    public static boolean isDebug() {
+        return debug;
+    }
+
+    // A cleared direct buffer of at least minBytes, its capacity may be more
+    public static ByteBuffer acquire(int minBytes) {
+        ByteBuffer buffer;
+        SizeClass sizeClass = classFor(minBytes);
+        if (sizeClass == null) {
+            unpooled.increment();
+            buffer = ByteBuffer.allocateDirect(minBytes);
+        } else {
+            buffer = sizeClass.free.pollFirst();
+            if (buffer != null) {
+                sizeClass.freeCount.decrementAndGet();
+                hits.increment();
+            } else {
+                allocations.increment();
+                buffer = ByteBuffer.allocateDirect(sizeClass.size);
+            }
+            sizeClass.borrowed.incrementAndGet();
+        }
+        if (debug) {
+            track(buffer);
+        }
+        return buffer;
+    }
+
+    // Give a buffer back; the caller must not touch it afterwards
+    public static void release(ByteBuffer buffer) {
+        if (debug && !untrack(buffer)) {
+            return;
+        }
+        SizeClass sizeClass = classFor(buffer.capacity());
+        if (sizeClass == null || sizeClass.size != buffer.capacity() || !buffer.isDirect()) {
+            return; // Not one of ours, the garbage collector frees it
+        }
+        sizeClass.borrowed.decrementAndGet();
+        if (sizeClass.freeCount.incrementAndGet() > sizeClass.maxFree) {
+            sizeClass.freeCount.decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        sizeClass.free.offerFirst(buffer);
+    }
+
+    // The smallest class holding bytes, null if none does
+    private static SizeClass classFor(int bytes) {
+        if (bytes > MAX_SIZE) {
+            return null;
+        }
+        int size = Math.max(MIN_SIZE, Integer.highestOneBit(Math.max(bytes, 1) - 1) << 1);
+        return SIZE_CLASSES[Integer.numberOfTrailingZeros(size / MIN_SIZE)];
+    }
+
+    // Bytes out on loan in all pooled classes
+    public static long borrowedBytes() {
+        long bytes = 0;
+        for (SizeClass sizeClass : SIZE_CLASSES) {
+            bytes += sizeClass.borrowed.get() * sizeClass.size;
+        }
+        return bytes;
+    }
+
+    // Bytes sitting in the free lists
+    public static long freeBytes() {
+        long bytes = 0;
+        for (SizeClass sizeClass : SIZE_CLASSES) {
+            bytes += (long) sizeClass.freeCount.get() * sizeClass.size;
+        }
+        return bytes;
+    }
+
+    public static long hits() {
+        return hits.sum();
+    }
+
+    public static long allocations() {
+        return allocations.sum();
+    }
+
+    public static long unpooled() {
+        return unpooled.sum();
+    }
+
+    public static long leaks() {
+        return leaks.sum();
+    }
+
+    // Debug: one loan, and where it was made
+    private static final class Borrow {
+        final Throwable where;
+        final int capacity;
+        volatile boolean returned;
+        Cleaner.Cleanable cleanable;
+
+        Borrow(int capacity) {
+            this.capacity = capacity;
+            this.where = new Throwable("buffer of " + capacity + " bytes borrowed here");
+        }
+    }
+
+    // Debug: a weak map key that compares buffers by identity, not by content
+    private static final class IdentityKey extends WeakReference<ByteBuffer> {
+        private final int hash;
+
+        IdentityKey(ByteBuffer buffer) {
+            super(buffer);
+            this.hash = System.identityHashCode(buffer);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object other) {
+            if (other == this) {
+                return true;
+            }
+            if (!(other instanceof IdentityKey)) {
+                return false;
+            }
+            ByteBuffer buffer = get();
+            return buffer != null && buffer == ((IdentityKey) other).get();
+        }
+    }
+
+    private static void track(ByteBuffer buffer) {
+        IdentityKey key = new IdentityKey(buffer);
+        Borrow borrow = new Borrow(buffer.capacity());
+        loans.put(key, borrow);
+        // Runs when the buffer is collected, or right away once it is given back
+        borrow.cleanable = cleaner.register(buffer, () -> {
+            loans.remove(key, borrow);
+            if (!borrow.returned) {
+                leaks.increment();
+                SizeClass sizeClass = classFor(borrow.capacity);
+                if (sizeClass != null && sizeClass.size == borrow.capacity) {
+                    sizeClass.borrowed.decrementAndGet();
+                }
+                ChatLog.error("Leak: a pooled buffer of " + borrow.capacity
+                        + " bytes was never given back", borrow.where);
+            }
+        });
+    }
+
+    // False if the buffer is not out on loan (given back twice, or not from here)
+    private static boolean untrack(ByteBuffer buffer) {
+        Borrow borrow = loans.get(new IdentityKey(buffer));
+        if (borrow == null) {
+            ChatLog.error("Pooled buffer given back twice, or not borrowed while debugging",
+                    new Throwable("given back here"));
+            return false;
+        }
+        borrow.returned = true;
+        borrow.cleanable.clean();
+        return true;
+    }
+}
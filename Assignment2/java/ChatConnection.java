@@ -0,0 +1,264 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * This class is the common part of every connected chat client
+ * The server can run a client either on its own thread (ClientHandler)
+ * or on a selector thread (GroupChatReactor), and broadcastMessage
+ * only needs to know the username and how to send a message to it
+ *
+ * Sending never writes to the socket directly: the line is put on this
+ * client's bounded outbound queue and the client's own writer drains it,
+ * so a broadcaster is never stuck behind one client's full TCP buffer
+ */
+public abstract class ChatConnection {
+    // Same charset the clients' InputStreamReader/PrintWriter use
+    public static final Charset CHARSET = Charset.defaultCharset();
+
+    // First line the client sends, null until the client has sent it
+    protected volatile String username;
+
+    // Room the client is in, null before it has a username and after it left
+    protected volatile String room;
+
+    // When bytes last came in from the client, for the idle check (System.nanoTime)
+    protected volatile long lastRead = System.nanoTime();
+
+    // True once the client has said it answers pings, by sending a /pong or
+    // PONG nobody asked for. Older clients never do and are never pinged
+    protected volatile boolean heartbeats;
+
+    // True once the client has negotiated the binary protocol (see ChatFrame)
+    protected volatile boolean binary;
+
+    // Messages from this many bytes on go out deflated, -1 for never
+    // Only set for binary clients that agreed on version 2 (see Compression)
+    protected volatile int compressFrom = -1;
+
+    // The resumable session this connection belongs to, null for none
+    // Messages for a session client are numbered and kept by the session
+    protected volatile ChatSession session;
+
+    // Inbound rate limits, null for none. Only the thread reading this
+    // client uses them, along with when it was last told it is too fast
+    protected TokenBucket messageBucket;
+    protected TokenBucket byteBucket;
+    protected long lastRateNotice;
+
+    // Encoded lines waiting for this client's writer, and how many bytes they hold
+    // An entry is one buffer, or for a session message its number and the
+    // shared message, which are written and dropped together
+    protected final BlockingQueue<ByteBuffer[]> outbound;
+    static final int MAX_ENTRY_BUFFERS = 2;
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final SlowConsumerPolicy slowPolicy;
+
+    protected ChatConnection(int queueCapacity, SlowConsumerPolicy slowPolicy) {
+        this.outbound = new ArrayBlockingQueue<>(queueCapacity);
+        this.slowPolicy = slowPolicy;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    // Encode a line (without the newline) once, ready to be shared by many clients
+    // Direct buffers go to a SocketChannel without being copied again by the JDK
+    public static ByteBuffer encode(String line, boolean direct) {
+        byte[] bytes = (line + "\n").getBytes(CHARSET);
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(bytes.length) : ByteBuffer.wrap(bytes);
+        if (direct) {
+            buffer.put(bytes).flip();
+        }
+        return buffer.asReadOnlyBuffer();
+    }
+
+    // Bytes a line takes in CHARSET, counted without encoding it when that is UTF-8
+    public static int encodedLength(String line) {
+        if (!CHARSET.equals(StandardCharsets.UTF_8)) {
+            return line.getBytes(CHARSET).length;
+        }
+        int bytes = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < line.length()
+                    && Character.isLowSurrogate(line.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    // Queue a message for this client in whichever protocol it speaks
+    // Never blocks on the socket, only on the queue and only with the BLOCK policy
+    public void send(ChatMessage message) {
+        ChatSession resumable = session;
+        if (resumable != null) {
+            resumable.send(this, message);
+            return;
+        }
+        send(binary ? message.frame(compressFrom) : message.line());
+    }
+
+    // A session's message: its sequence number (a /seq line or a SEQ frame)
+    // and then the shared message, as one queue entry. The slow consumer
+    // policy drops both or neither, so a number never ends up on some other
+    // message, and the writer sends both in the same gathering write
+    void sendSequenced(long seq, ChatMessage message) {
+        ByteBuffer header = binary ? ChatFrame.encode(ChatFrame.SEQ, "", Long.toString(seq))
+                : encode("/seq " + seq, false);
+        ByteBuffer body = binary ? message.frame(compressFrom) : message.line();
+        enqueue(new ByteBuffer[] { header, body.duplicate() });
+    }
+
+    // Queue already encoded bytes shared with other clients
+    // Each client gets its own duplicate, so positions never interfere
+    public void send(ByteBuffer shared) {
+        enqueue(new ByteBuffer[] { shared.duplicate() });
+    }
+
+    // Bytes an entry still has to write
+    protected static long remaining(ByteBuffer[] entry) {
+        long bytes = 0;
+        for (ByteBuffer buffer : entry) {
+            bytes += buffer.remaining();
+        }
+        return bytes;
+    }
+
+    // Heartbeat, the client answers with /pong (line) or a PONG frame
+    private static final ByteBuffer PING_LINE = encode("/ping", false);
+    private static final ByteBuffer PING_FRAME = ChatFrame.encode(ChatFrame.PING, "", "").asReadOnlyBuffer();
+
+    // Never waits: a client whose queue is full has plenty to read already
+    public void sendPing() {
+        if (outputEnding) {
+            return;
+        }
+        ByteBuffer ping = (binary ? PING_FRAME : PING_LINE).duplicate();
+        queuedBytes.addAndGet(ping.remaining());
+        if (isClosed() || !outbound.offer(new ByteBuffer[] { ping })) {
+            queuedBytes.addAndGet(-ping.remaining());
+            return;
+        }
+        wakeWriter();
+    }
+
+    protected void enqueue(ByteBuffer[] entry) {
+        if (isClosed()) {
+            return;
+        }
+        // Counted before it is on the queue so the writer never takes it below zero
+        long bytes = remaining(entry);
+        queuedBytes.addAndGet(bytes);
+        if (!outbound.offer(entry)) {
+            switch (slowPolicy) {
+                case DROP_OLDEST:
+                    do {
+                        if (pollOutbound() != null) {
+                            ChatMetrics.droppedMessages.increment();
+                        }
+                    } while (!outbound.offer(entry));
+                    break;
+                case DISCONNECT:
+                    queuedBytes.addAndGet(-bytes);
+                    ChatMetrics.slowDisconnects.increment();
+                    ChatLog.warn("Disconnecting slow client " + username);
+                    evict();
+                    return;
+                case BLOCK:
+                    ChatMetrics.blockedSends.increment();
+                    try {
+                        outbound.put(entry);
+                    } catch (InterruptedException e) {
+                        queuedBytes.addAndGet(-bytes);
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    break;
+            }
+        }
+        wakeWriter();
+    }
+
+    // Queued by finishOutput() behind everything else, wakes a waiting writer
+    // Empty, so writing it sends nothing
+    private static final ByteBuffer[] END_OF_OUTPUT = { ByteBuffer.allocate(0) };
+
+    // Set once the writer should end the output after what is queued
+    protected volatile boolean outputEnding;
+
+    // Send what is queued, then end the output so the client reads end of
+    // stream (used when the server shuts down). Skips the slow consumer
+    // policy: if the queue is full the writer is busy and finds the flag
+    // once it has emptied the queue
+    public void finishOutput() {
+        outputEnding = true;
+        outbound.offer(END_OF_OUTPUT);
+        wakeWriter();
+    }
+
+    // Writers take from the queue through these so queuedBytes stays right
+    protected ByteBuffer[] pollOutbound() {
+        ByteBuffer[] entry = outbound.poll();
+        if (entry != null) {
+            queuedBytes.addAndGet(-remaining(entry));
+        }
+        return entry;
+    }
+
+    protected ByteBuffer[] pollOutbound(long timeout, TimeUnit unit) throws InterruptedException {
+        ByteBuffer[] entry = outbound.poll(timeout, unit);
+        if (entry != null) {
+            queuedBytes.addAndGet(-remaining(entry));
+        }
+        return entry;
+    }
+
+    protected ByteBuffer[] takeOutbound() throws InterruptedException {
+        ByteBuffer[] entry = outbound.take();
+        queuedBytes.addAndGet(-remaining(entry));
+        return entry;
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    // Tell this client's writer there is something on the queue
+    protected abstract void wakeWriter();
+
+    // Read nothing more from this client for that long, called on its reading thread
+    protected abstract void throttle(long nanos);
+
+    public abstract boolean isClosed();
+
+    // Close because the server decided so (too slow, too fast, silent): the
+    // user is out, so the session ends instead of waiting for a resume
+    public void evict() {
+        ChatSession resumable = session;
+        if (resumable != null) {
+            resumable.end();
+        }
+        close();
+    }
+
+    // Close the underlying connection, safe to call more than once
+    public abstract void close();
+}
@@ -0,0 +1,244 @@
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * This class is the binary framing used instead of text lines when both
+ * ends agree on it (GroupChat and TwoWayAsyncMesg programs, --binary)
+ *
+ * A connection is binary if the client's first bytes are the preamble
+ * 0x00 'G' 'C' <version>. A typed line never starts with a zero byte,
+ * so the server can still tell old line clients apart. The server answers
+ * with the same preamble carrying the version both sides will use.
+ *
+ * Every frame after the preamble is
+ *   int    length of the rest of the frame
+ *   byte   type (HELLO, MESSAGE, ...)
+ *   byte   sender length, then that many UTF-8 bytes of sender name
+ *   bytes  payload, UTF-8 text for chat messages, can hold newlines
+ *
+ * Version 2 adds DEFLATED frames (see Compression). A server only picks
+ * version 2 when it compresses, and never sends them to a version 1 peer
+ *
+ * SESSION, SEQ and ACK frames only flow once the client asked for a
+ * session, so they need no version of their own
+ *
+ * The methods below work on a ByteBuffer holding a whole frame from its
+ * position to its limit, so a frame is parsed in place without Strings
+ */
+public final class ChatFrame {
+    public static final byte VERSION = 2;
+    public static final int PREAMBLE_LENGTH = 4;
+
+    // int length + type + sender length
+    public static final int HEADER_LENGTH = 6;
+
+    // Bigger frames are a broken or hostile peer
+    public static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    // Frame types
+    public static final byte HELLO = 1;     // client's username, first frame
+    public static final byte MESSAGE = 2;   // a chat message
+    public static final byte HISTORY = 3;   // past messages from the server, payload is "sender: text\n" lines
+    public static final byte FILE_START = 4; // a file transfer, see FileTransfer
+    public static final byte FILE_DATA = 5;
+    public static final byte FILE_END = 6;
+    public static final byte PING = 7;      // heartbeat, answered with PONG
+    public static final byte PONG = 8;
+    public static final byte DEFLATED = 9;  // a MESSAGE with a deflated payload, version 2 only
+    public static final byte SESSION = 10;  // resumable session, see ChatSession: client asks ("") or resumes
+                                            // ("<id> <seq>"), server answers "<id>", or "" for none
+    public static final byte SEQ = 11;      // sequence number of the next message, session clients only
+    public static final byte ACK = 12;      // client has every message up to this sequence number
+
+    private ChatFrame() {
+    }
+
+    public static byte[] preamble(byte version) {
+        return new byte[] { 0, 'G', 'C', version };
+    }
+
+    // Version in the preamble at the buffer's position, 0 if it is not one
+    public static int preambleVersion(ByteBuffer buffer) {
+        int at = buffer.position();
+        if (buffer.get(at) != 0 || buffer.get(at + 1) != 'G' || buffer.get(at + 2) != 'C') {
+            return 0;
+        }
+        return buffer.get(at + 3);
+    }
+
+    // Size of the whole frame starting at the buffer's position,
+    // or -1 if not even the length has arrived yet
+    // Once the header is there the sender length is checked too, so
+    // sender() and payload() never reach past the end of the frame
+    public static int frameSize(ByteBuffer buffer) throws ProtocolException {
+        if (buffer.remaining() < 4) {
+            return -1;
+        }
+        int length = buffer.getInt(buffer.position());
+        if (length < HEADER_LENGTH - 4 || length > MAX_FRAME_LENGTH) {
+            throw new ProtocolException("bad frame length " + length);
+        }
+        if (buffer.remaining() >= HEADER_LENGTH) {
+            int senderLength = buffer.get(buffer.position() + 5) & 0xff;
+            if (HEADER_LENGTH + senderLength > length + 4) {
+                throw new ProtocolException("sender length " + senderLength + " is past the end of the frame");
+            }
+        }
+        return length + 4;
+    }
+
+    public static byte type(ByteBuffer frame) {
+        return frame.get(frame.position() + 4);
+    }
+
+    public static ByteBuffer sender(ByteBuffer frame) {
+        int senderLength = frame.get(frame.position() + 5) & 0xff;
+        return frame.slice(frame.position() + HEADER_LENGTH, senderLength);
+    }
+
+    public static ByteBuffer payload(ByteBuffer frame) {
+        int start = frame.position() + HEADER_LENGTH + (frame.get(frame.position() + 5) & 0xff);
+        return frame.slice(start, frame.limit() - start);
+    }
+
+    // Only for the places that really need a String, like printing
+    public static String text(ByteBuffer bytes) {
+        byte[] array = new byte[bytes.remaining()];
+        bytes.duplicate().get(array);
+        return new String(array, StandardCharsets.UTF_8);
+    }
+
+    // Build a frame from already encoded sender and payload bytes
+    public static ByteBuffer encode(byte type, ByteBuffer sender, ByteBuffer payload, boolean direct) {
+        int senderLength = Math.min(sender.remaining(), 255);
+        int size = HEADER_LENGTH + senderLength + payload.remaining();
+        ByteBuffer frame = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        frame.putInt(size - 4);
+        frame.put(type);
+        frame.put((byte) senderLength);
+        frame.put(sender.duplicate().limit(sender.position() + senderLength));
+        frame.put(payload.duplicate());
+        frame.flip();
+        return frame;
+    }
+
+    public static ByteBuffer encode(byte type, String sender, String payload) {
+        return encode(type, ByteBuffer.wrap(sender.getBytes(StandardCharsets.UTF_8)),
+                ByteBuffer.wrap(payload.getBytes(StandardCharsets.UTF_8)), false);
+    }
+
+    // Write one frame to a blocking stream and flush it
+    public static void write(OutputStream out, byte type, String sender, String payload) throws IOException {
+        ByteBuffer frame = encode(type, sender, payload);
+        out.write(frame.array(), 0, frame.limit());
+        out.flush();
+    }
+
+    /*
+     * Server side of the handshake on a blocking stream
+     * Returns the agreed version, or 0 if the peer speaks the line protocol,
+     * in which case nothing has been consumed from the stream
+     */
+    public static int acceptPreamble(BufferedInputStream in, OutputStream out) throws IOException {
+        return acceptPreamble(in, out, VERSION);
+    }
+
+    // Same, agreeing on maxVersion at most
+    public static int acceptPreamble(BufferedInputStream in, OutputStream out, int maxVersion) throws IOException {
+        in.mark(PREAMBLE_LENGTH);
+        if (in.read() != 0) {
+            in.reset();
+            return 0;
+        }
+        byte[] rest = new byte[PREAMBLE_LENGTH - 1];
+        new DataInputStream(in).readFully(rest);
+        if (rest[0] != 'G' || rest[1] != 'C') {
+            throw new ProtocolException("bad preamble");
+        }
+        byte version = (byte) Math.min(rest[2], maxVersion);
+        out.write(preamble(version));
+        out.flush();
+        return version;
+    }
+
+    // Client side of the handshake, returns the version the server picked
+    public static int sendPreamble(InputStream in, OutputStream out) throws IOException {
+        out.write(preamble(VERSION));
+        out.flush();
+        byte[] reply = new byte[PREAMBLE_LENGTH];
+        new DataInputStream(in).readFully(reply);
+        int version = preambleVersion(ByteBuffer.wrap(reply));
+        if (version < 1) {
+            throw new ProtocolException("server does not speak the binary protocol");
+        }
+        return version;
+    }
+
+    /*
+     * Reads frames from a blocking stream or channel into one reusable buffer
+     * The frame returned by next() is only valid until the next call
+     */
+    public static final class Reader {
+        private final InputStream in;
+        private final ReadableByteChannel channel;
+        private ByteBuffer buffer;
+
+        public Reader(InputStream in) {
+            this.in = in;
+            this.channel = null;
+            this.buffer = ByteBuffer.allocate(8192);
+            buffer.limit(0);
+        }
+
+        // Reads from the channel into a direct buffer, so frame payloads never
+        // land in the Java heap. Whatever the stream has buffered already (it
+        // was used for the preamble) is taken first
+        public Reader(ReadableByteChannel channel, InputStream buffered) throws IOException {
+            this.in = null;
+            this.channel = channel;
+            byte[] early = buffered.readNBytes(buffered.available());
+            this.buffer = ByteBuffer.allocateDirect(Math.max(8192, early.length));
+            buffer.put(early).flip();
+        }
+
+        // Next frame, position at its start and limit at its end, null at EOF
+        public ByteBuffer next() throws IOException {
+            while (true) {
+                int size = frameSize(buffer);
+                if (size > 0 && buffer.remaining() >= size) {
+                    ByteBuffer frame = buffer.slice(buffer.position(), size);
+                    buffer.position(buffer.position() + size);
+                    return frame;
+                }
+
+                // Need more bytes, make room for the whole frame first
+                buffer.compact();
+                if (size > buffer.capacity()) {
+                    ByteBuffer bigger = buffer.isDirect() ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+                    buffer.flip();
+                    bigger.put(buffer);
+                    buffer = bigger;
+                }
+                int count;
+                if (channel != null) {
+                    count = channel.read(buffer);
+                } else {
+                    count = in.read(buffer.array(), buffer.position(), buffer.remaining());
+                    if (count > 0) {
+                        buffer.position(buffer.position() + count);
+                    }
+                }
+                buffer.flip();
+                if (count < 0) {
+                    if (buffer.hasRemaining()) {
+                        throw new EOFException("connection closed in the middle of a frame");
+                    }
+                    return null;
+                }
+            }
+        }
+    }
+}
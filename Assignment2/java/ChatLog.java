@@ -0,0 +1,311 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * This class is where the programs' console and log output goes
+ * Calling threads only put a line on a ring buffer, one writer thread
+ * takes everything there and writes it out in one go, so a thread serving
+ * clients never waits for the console or a disk and never takes the lock
+ * that System.out.println takes for every line
+ *
+ * The ring is lock free: a thread claims a slot by moving the tail with a
+ * compare and set, fills it, then marks it ready with the slot's sequence
+ * number, which is all the writer looks at (a bounded multi producer,
+ * single consumer queue). If the ring is full a log line is dropped and
+ * counted rather than making a client thread wait; the writer reports how
+ * many were dropped
+ *
+ * Log lines have a level (LogLevel) and lines below --log-level are not
+ * even queued. They go to the console, or with --log-file to a file that
+ * is rolled over at a size limit. display() lines are what a program shows
+ * its user (chat messages in the two way programs, /stats on the server
+ * console): they always go to the console, are never dropped and wait for
+ * room instead
+ */
+public final class ChatLog {
+    private static final int CAPACITY = 16 * 1024; // power of two
+    private static final int MASK = CAPACITY - 1;
+    private static final int MAX_BATCH = 1024;
+
+    // A display() slot has no level
+    private static final byte DISPLAY = -1;
+
+    // The ring: sequence numbers say whether a slot is free or ready
+    private static final AtomicLongArray sequence = new AtomicLongArray(CAPACITY);
+    private static final String[] texts = new String[CAPACITY];
+    private static final byte[] levels = new byte[CAPACITY];
+    private static final long[] times = new long[CAPACITY];
+    private static final AtomicLong tail = new AtomicLong();
+
+    // Writer thread only: next slot to take; written is published for flush()
+    private static long head;
+    private static volatile long written;
+
+    private static final LongAdder dropped = new LongAdder();
+    private static long droppedReported;
+
+    private static volatile int minLevel = LogLevel.INFO.ordinal();
+    private static volatile RollingFile file;
+
+    private static final Thread writer;
+    private static volatile boolean writerWaiting;
+
+    private static final DateTimeFormatter TIME =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequence.set(i, i);
+        }
+        writer = new Thread(ChatLog::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // Whatever is queued still gets out when the program exits
+        Runtime.getRuntime().addShutdownHook(new Thread(ChatLog::flush, "log-flush"));
+    }
+
+    private ChatLog() {
+    }
+
+    public static void setLevel(LogLevel level) {
+        minLevel = level.ordinal();
+    }
+
+    // Whether lines of this level are kept, to skip building ones that are not
+    public static boolean enabled(LogLevel level) {
+        return level.ordinal() >= minLevel;
+    }
+
+    // Log lines go to this file from now on instead of the console. When it
+    // reaches maxBytes it is renamed to <file>.1 (the older ones move up to
+    // <file>.2 ...), keeping up to keep old files, and a new one is started
+    public static void toFile(Path path, long maxBytes, int keep) throws IOException {
+        file = new RollingFile(path, maxBytes, keep);
+    }
+
+    public static void debug(String message) {
+        log(LogLevel.DEBUG, message);
+    }
+
+    public static void info(String message) {
+        log(LogLevel.INFO, message);
+    }
+
+    public static void warn(String message) {
+        log(LogLevel.WARN, message);
+    }
+
+    public static void error(String message) {
+        log(LogLevel.ERROR, message);
+    }
+
+    // The message, then the stack trace
+    public static void error(String message, Throwable cause) {
+        if (enabled(LogLevel.ERROR)) {
+            StringWriter trace = new StringWriter();
+            cause.printStackTrace(new PrintWriter(trace));
+            log(LogLevel.ERROR, message + System.lineSeparator() + trace.toString().trim());
+        }
+    }
+
+    public static void log(LogLevel level, String message) {
+        if (level.ordinal() >= minLevel && !offer((byte) level.ordinal(), message)) {
+            dropped.increment();
+        }
+    }
+
+    // A line for the user at the console, waits if the ring is full
+    public static void display(String line) {
+        while (!offer(DISPLAY, line)) {
+            wakeWriter();
+            LockSupport.parkNanos(50_000);
+        }
+    }
+
+    // Log lines dropped because the ring was full
+    public static long dropped() {
+        return dropped.sum();
+    }
+
+    // Wait (up to a couple of seconds) until everything queued so far is written
+    public static void flush() {
+        long target = tail.get();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (written < target && System.nanoTime() < deadline) {
+            wakeWriter();
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    // Claim a slot, fill it and mark it ready; false if the ring is full
+    private static boolean offer(byte level, String text) {
+        long now = System.currentTimeMillis();
+        while (true) {
+            long position = tail.get();
+            int slot = (int) (position & MASK);
+            long difference = sequence.get(slot) - position;
+            if (difference < 0) {
+                return false; // The writer has not taken this slot's last line yet
+            }
+            if (difference == 0 && tail.compareAndSet(position, position + 1)) {
+                texts[slot] = text;
+                levels[slot] = level;
+                times[slot] = now;
+                sequence.set(slot, position + 1);
+                if (writerWaiting) {
+                    wakeWriter();
+                }
+                return true;
+            }
+            // Another thread took the slot first, try the next one
+        }
+    }
+
+    private static void wakeWriter() {
+        LockSupport.unpark(writer);
+    }
+
+    // The writer thread starts here
+    private static void writeLoop() {
+        StringBuilder console = new StringBuilder();
+        StringBuilder logged = new StringBuilder();
+        while (true) {
+            int taken = 0;
+            while (taken < MAX_BATCH) {
+                int slot = (int) (head & MASK);
+                if (sequence.get(slot) != head + 1) {
+                    break;
+                }
+                String text = texts[slot];
+                byte level = levels[slot];
+                long time = times[slot];
+                texts[slot] = null;
+                sequence.set(slot, head + CAPACITY);
+                head++;
+                taken++;
+
+                RollingFile to = file;
+                if (level == DISPLAY || to == null) {
+                    console.append(text).append(System.lineSeparator());
+                } else {
+                    logged.append(TIME.format(Instant.ofEpochMilli(time))).append(' ')
+                            .append(LogLevel.values()[level]).append(' ').append(text).append('\n');
+                }
+            }
+            long lost = dropped.sum();
+            if (lost > droppedReported) {
+                String note = "(" + (lost - droppedReported) + " log lines dropped, the log could not keep up)";
+                droppedReported = lost;
+                (file == null ? console : logged).append(note).append(System.lineSeparator());
+            }
+
+            if (console.length() > 0) {
+                System.out.print(console);
+                System.out.flush();
+                console.setLength(0);
+            }
+            if (logged.length() > 0) {
+                try {
+                    file.write(logged.toString().getBytes(StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    System.out.println("Cannot write the log file: " + e.getMessage());
+                }
+                logged.setLength(0);
+            }
+            written = head;
+
+            if (taken == 0) {
+                // Nothing queued: sleep until a line comes, checking again
+                // after saying so, in case one came in between
+                writerWaiting = true;
+                if (sequence.get((int) (head & MASK)) != head + 1) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                }
+                writerWaiting = false;
+            }
+        }
+    }
+
+    // Writer thread only, apart from being made
+    private static final class RollingFile {
+        private final Path path;
+        private final long maxBytes;
+        private final int keep;
+        private OutputStream out;
+        private long size;
+
+        RollingFile(Path path, long maxBytes, int keep) throws IOException {
+            this.path = path;
+            this.maxBytes = maxBytes;
+            this.keep = keep;
+            Path parent = path.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            open();
+        }
+
+        void write(byte[] bytes) throws IOException {
+            IOException rollFailed = null;
+            if (out != null && size > 0 && size + bytes.length > maxBytes) {
+                try {
+                    roll();
+                } catch (IOException e) {
+                    rollFailed = e; // The lines still go to the file as it is
+                }
+            }
+            if (out == null) {
+                open();
+            }
+            out.write(bytes);
+            size += bytes.length;
+            if (rollFailed != null) {
+                throw new IOException("rolling it over failed, still writing to " + path + ": "
+                        + rollFailed.getMessage(), rollFailed);
+            }
+        }
+
+        // Appends to whatever is at path, after a roll that failed halfway
+        // that is the old file, which is rolled again at the next write
+        private void open() throws IOException {
+            out = new FileOutputStream(path.toFile(), true);
+            size = Files.size(path);
+        }
+
+        // Leaves out null, write() opens the new file
+        private void roll() throws IOException {
+            try {
+                out.close();
+                for (int i = keep - 1; i >= 1; i--) {
+                    Path older = Paths.get(path + "." + i);
+                    if (Files.exists(older)) {
+                        Files.move(older, Paths.get(path + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+                if (keep > 0) {
+                    Files.move(path, Paths.get(path + ".1"), StandardCopyOption.REPLACE_EXISTING);
+                } else {
+                    Files.delete(path);
+                }
+            } finally {
+                out = null;
+            }
+        }
+    }
+}
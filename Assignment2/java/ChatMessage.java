@@ -0,0 +1,126 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * This class is one message on its way to every member of the chat
+ * Line clients and binary clients need different bytes for it, so each
+ * form is encoded the first time a recipient asks for it and then shared
+ * by all recipients of that form (they each send a duplicate)
+ *
+ * A message from a binary client keeps its payload as the UTF-8 bytes it
+ * arrived as; no String is made for it unless a line client is listening
+ * and the line charset is not UTF-8
+ */
+public final class ChatMessage {
+    private static final boolean LINE_IS_UTF8 = ChatConnection.CHARSET.equals(StandardCharsets.UTF_8);
+
+    private final String sender;
+    private final String text;      // null when built from frame bytes
+    private final byte[] payload;   // UTF-8, null when built from text
+    private final boolean direct;
+
+    // Encoded forms, made on first use. Two threads may both encode one,
+    // that only wastes a little work since both results are the same
+    private volatile ByteBuffer line;
+    private volatile ByteBuffer frame;
+    private volatile ByteBuffer deflatedFrame;
+
+    public ChatMessage(String sender, String text, boolean direct) {
+        this.sender = sender;
+        this.text = text;
+        this.payload = null;
+        this.direct = direct;
+    }
+
+    // The payload buffer is copied, the caller may reuse it afterwards
+    public ChatMessage(String sender, ByteBuffer payload, boolean direct) {
+        this.sender = sender;
+        this.text = null;
+        this.payload = new byte[payload.remaining()];
+        payload.duplicate().get(this.payload);
+        this.direct = direct;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    // For a client that takes DEFLATED frames: one if the text is at least
+    // compressFrom bytes (-1 for never) and deflating makes it smaller,
+    // otherwise the MESSAGE frame. Deflated once and shared like frame()
+    public ByteBuffer frame(int compressFrom) {
+        // A String is measured in chars, close enough to its UTF-8 length here
+        int length = payload != null ? payload.length : text.length();
+        if (compressFrom < 0 || length < compressFrom) {
+            return frame();
+        }
+        ByteBuffer encoded = deflatedFrame;
+        if (encoded == null) {
+            ByteBuffer deflated = Compression.deflate(payload());
+            if (deflated == null) {
+                encoded = frame();
+            } else {
+                encoded = ChatFrame.encode(ChatFrame.DEFLATED, ByteBuffer.wrap(sender.getBytes(StandardCharsets.UTF_8)),
+                        deflated, direct).asReadOnlyBuffer();
+            }
+            deflatedFrame = encoded;
+        }
+        return encoded;
+    }
+
+    // The message text as UTF-8, shared, do not change it
+    public byte[] payload() {
+        return payload != null ? payload : text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // "sender: text\n" for line protocol clients
+    // A line ends at the first newline, so CR and LF inside a message (a
+    // binary client may send them) are escaped as \r and \n; otherwise a
+    // message could pass for other lines, server notices or /seq and /ping
+    public ByteBuffer line() {
+        ByteBuffer encoded = line;
+        if (encoded == null) {
+            if (text == null && LINE_IS_UTF8 && !hasLineBreak(payload) && !hasLineBreak(sender)) {
+                byte[] header = (sender + ": ").getBytes(StandardCharsets.UTF_8);
+                encoded = direct ? ByteBuffer.allocateDirect(header.length + payload.length + 1)
+                        : ByteBuffer.allocate(header.length + payload.length + 1);
+                encoded.put(header).put(payload).put((byte) '\n').flip();
+                encoded = encoded.asReadOnlyBuffer();
+            } else {
+                String body = text != null ? text : new String(payload, StandardCharsets.UTF_8);
+                encoded = ChatConnection.encode(oneLine(sender) + ": " + oneLine(body), direct);
+            }
+            line = encoded;
+        }
+        return encoded;
+    }
+
+    private static boolean hasLineBreak(byte[] bytes) {
+        for (byte b : bytes) {
+            if (b == '\n' || b == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasLineBreak(String text) {
+        return text.indexOf('\n') >= 0 || text.indexOf('\r') >= 0;
+    }
+
+    private static String oneLine(String text) {
+        return hasLineBreak(text) ? text.replace("\r", "\\r").replace("\n", "\\n") : text;
+    }
+
+    // A MESSAGE frame for binary protocol clients
+    public ByteBuffer frame() {
+        ByteBuffer encoded = frame;
+        if (encoded == null) {
+            byte[] body = payload != null ? payload : text.getBytes(StandardCharsets.UTF_8);
+            encoded = ChatFrame.encode(ChatFrame.MESSAGE, ByteBuffer.wrap(sender.getBytes(StandardCharsets.UTF_8)),
+                    ByteBuffer.wrap(body), direct).asReadOnlyBuffer();
+            frame = encoded;
+        }
+        return encoded;
+    }
+}
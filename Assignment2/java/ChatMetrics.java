@@ -0,0 +1,192 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * This class holds the group chat server's metrics
+ * Counters are LongAdders and histograms are LatencyHistograms, so
+ * recording from any number of client threads takes no locks and the
+ * counters can stay on in the hot path
+ *
+ * The server can publish them in Prometheus text format over HTTP on the
+ * loopback interface (--metrics-port), and /stats on the console prints them
+ */
+public class ChatMetrics {
+    // Connections
+    public static final LongAdder accepts = new LongAdder();
+    public static final LongAdder disconnects = new LongAdder();
+    public static final LongAdder idleTimeouts = new LongAdder();
+
+    // Chat messages and bytes read from clients
+    public static final LongAdder inboundMessages = new LongAdder();
+    public static final LongAdder inboundBytes = new LongAdder();
+
+    // Messages and bytes written to clients, one message per recipient
+    public static final LongAdder outboundMessages = new LongAdder();
+    public static final LongAdder outboundBytes = new LongAdder();
+
+    // Private messages delivered, and ones for a user who is not here
+    public static final LongAdder directMessages = new LongAdder();
+    public static final LongAdder directMisses = new LongAdder();
+
+    // Time for broadcastMessage to queue a message for every member
+    public static final LatencyHistogram broadcastNanos = new LatencyHistogram();
+    public static final LongAdder broadcastRecipients = new LongAdder();
+
+    // Messages and bytes per socket write, after coalescing
+    public static final LatencyHistogram flushMessages = new LatencyHistogram();
+    public static final LatencyHistogram flushBytes = new LatencyHistogram();
+
+    // Cluster relay: messages sent to and received from peer nodes,
+    // duplicates dropped, messages a full peer queue missed, messages per batch
+    public static final LongAdder relayOut = new LongAdder();
+    public static final LongAdder relayIn = new LongAdder();
+    public static final LongAdder relayDuplicates = new LongAdder();
+    public static final LongAdder relayDropped = new LongAdder();
+    public static final LatencyHistogram relayBatch = new LatencyHistogram();
+
+    // Compression of big messages: messages deflated, bytes before and after,
+    // messages that did not get smaller, and time spent per message
+    public static final LongAdder compressedMessages = new LongAdder();
+    public static final LongAdder compressInBytes = new LongAdder();
+    public static final LongAdder compressOutBytes = new LongAdder();
+    public static final LongAdder compressSkipped = new LongAdder();
+    public static final LatencyHistogram compressNanos = new LatencyHistogram();
+
+    // Inbound rate limits: messages over the limit, what was done about it,
+    // and time clients spent throttled
+    public static final LongAdder rateLimited = new LongAdder();
+    public static final LongAdder rateDropped = new LongAdder();
+    public static final LongAdder rateDisconnects = new LongAdder();
+    public static final LongAdder throttledNanos = new LongAdder();
+
+    // Resumable sessions: resumes, resumes refused (unknown or expired),
+    // messages sent again on resume, sessions nobody resumed in time
+    public static final LongAdder sessionResumes = new LongAdder();
+    public static final LongAdder sessionResumeMisses = new LongAdder();
+    public static final LongAdder sessionRetransmits = new LongAdder();
+    public static final LongAdder sessionsExpired = new LongAdder();
+
+    // How often each slow consumer policy kicked in
+    public static final LongAdder droppedMessages = new LongAdder();
+    public static final LongAdder slowDisconnects = new LongAdder();
+    public static final LongAdder blockedSends = new LongAdder();
+
+    private ChatMetrics() {
+    }
+
+    // All metrics in Prometheus text format, gauges are read from the clients
+    public static String render(Collection<ChatConnection> clients) {
+        int queued = 0;
+        int maxQueued = 0;
+        for (ChatConnection client : clients) {
+            int depth = client.outbound.size();
+            queued += depth;
+            maxQueued = Math.max(maxQueued, depth);
+        }
+
+        StringBuilder out = new StringBuilder();
+        gauge(out, "chat_clients", "Connected clients", clients.size());
+        counter(out, "chat_accepts_total", "Accepted connections", accepts.sum());
+        counter(out, "chat_disconnects_total", "Closed client connections", disconnects.sum());
+        counter(out, "chat_idle_timeouts_total", "Clients dropped for not answering heartbeats", idleTimeouts.sum());
+        counter(out, "chat_inbound_messages_total", "Messages read from clients", inboundMessages.sum());
+        counter(out, "chat_inbound_bytes_total", "Bytes read from clients", inboundBytes.sum());
+        counter(out, "chat_outbound_messages_total", "Messages written to clients", outboundMessages.sum());
+        counter(out, "chat_outbound_bytes_total", "Bytes written to clients", outboundBytes.sum());
+        gauge(out, "chat_outbound_queued", "Messages waiting in all outbound queues", queued);
+        gauge(out, "chat_outbound_queued_max", "Longest outbound queue", maxQueued);
+        counter(out, "chat_direct_messages_total", "Private messages delivered", directMessages.sum());
+        counter(out, "chat_direct_misses_total", "Private messages to users not connected here", directMisses.sum());
+        counter(out, "chat_broadcast_recipients_total", "Messages queued by broadcasts", broadcastRecipients.sum());
+        summary(out, "chat_broadcast_seconds", "Time to queue one broadcast for every member", broadcastNanos, 1e9);
+        summary(out, "chat_flush_messages", "Messages coalesced into one socket write", flushMessages, 1);
+        summary(out, "chat_flush_bytes", "Bytes coalesced into one socket write", flushBytes, 1);
+        counter(out, "chat_relay_out_total", "Messages sent to peer nodes", relayOut.sum());
+        counter(out, "chat_relay_in_total", "Messages received from peer nodes", relayIn.sum());
+        counter(out, "chat_relay_duplicates_total", "Relayed messages dropped as already seen", relayDuplicates.sum());
+        counter(out, "chat_relay_dropped_total", "Messages not relayed because a peer queue was full", relayDropped.sum());
+        summary(out, "chat_relay_batch_messages", "Messages per batch sent to a peer node", relayBatch, 1);
+        counter(out, "chat_compressed_messages_total", "Messages sent deflated", compressedMessages.sum());
+        counter(out, "chat_compress_in_bytes_total", "Bytes of messages before deflating", compressInBytes.sum());
+        counter(out, "chat_compress_out_bytes_total", "Bytes of messages after deflating", compressOutBytes.sum());
+        counter(out, "chat_compress_skipped_total", "Messages that did not get smaller", compressSkipped.sum());
+        long compressIn = compressInBytes.sum();
+        gauge(out, "chat_compression_ratio", "Deflated bytes per original byte", compressIn == 0 ? 1.0
+                : (double) compressOutBytes.sum() / compressIn);
+        summary(out, "chat_compress_seconds", "Time to deflate one message", compressNanos, 1e9);
+        counter(out, "chat_rate_limited_total", "Messages over a client's rate limit", rateLimited.sum());
+        counter(out, "chat_rate_dropped_total", "Messages dropped for a rate limit", rateDropped.sum());
+        counter(out, "chat_rate_disconnects_total", "Clients disconnected for a rate limit", rateDisconnects.sum());
+        counter(out, "chat_throttled_seconds_total", "Time clients were not read from for a rate limit",
+                throttledNanos.sum() / 1_000_000_000L);
+        gauge(out, "chat_pool_borrowed_bytes", "Pooled I/O buffer bytes in use", BufferPool.borrowedBytes());
+        gauge(out, "chat_pool_free_bytes", "Pooled I/O buffer bytes waiting to be reused", BufferPool.freeBytes());
+        counter(out, "chat_pool_hits_total", "Buffer borrows served from the pool", BufferPool.hits());
+        counter(out, "chat_pool_allocations_total", "Buffers allocated for the pool", BufferPool.allocations());
+        counter(out, "chat_pool_unpooled_total", "Buffers too big for the pool", BufferPool.unpooled());
+        counter(out, "chat_pool_leaks_total", "Pooled buffers never given back (--pool-debug)", BufferPool.leaks());
+        counter(out, "chat_session_resumes_total", "Sessions resumed on a new connection", sessionResumes.sum());
+        counter(out, "chat_session_resume_misses_total", "Resumes refused, session unknown or expired",
+                sessionResumeMisses.sum());
+        counter(out, "chat_session_retransmits_total", "Messages sent again to resumed sessions",
+                sessionRetransmits.sum());
+        counter(out, "chat_sessions_expired_total", "Dropped sessions nobody resumed in time", sessionsExpired.sum());
+        counter(out, "chat_log_dropped_total", "Log lines dropped because the log could not keep up", ChatLog.dropped());
+        counter(out, "chat_slow_dropped_total", "Messages dropped from full queues", droppedMessages.sum());
+        counter(out, "chat_slow_disconnects_total", "Clients disconnected for a full queue", slowDisconnects.sum());
+        counter(out, "chat_slow_blocked_total", "Sends that waited for queue room", blockedSends.sum());
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, double value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    // A histogram as a summary, values divided by scale (1e9 turns nanoseconds into seconds)
+    private static void summary(StringBuilder out, String name, String help, LatencyHistogram values, double scale) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" summary\n");
+        for (double quantile : new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+            out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(values.percentile(quantile) / scale).append('\n');
+        }
+        out.append(name).append("_sum ").append(values.sum() / scale).append('\n');
+        out.append(name).append("_count ").append(values.count()).append('\n');
+    }
+
+    // Serve render() at http://127.0.0.1:<port>/metrics
+    public static void serve(int port, Collection<ChatConnection> clients) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = render(clients).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        http.start();
+        ChatLog.info("Metrics at http://127.0.0.1:" + port + "/metrics");
+    }
+}
@@ -0,0 +1,180 @@
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+
+/*
+ * This class is a resumable session of one chat user
+ * A client asks for one after logging in (/session, or a SESSION frame),
+ * and from then on every message queued for it gets the next number of
+ * its sequence and is kept here until the client acknowledges it. The
+ * client acknowledges cumulatively (/ack n, or an ACK frame): everything
+ * up to n has arrived
+ *
+ * When the connection drops the user does not leave: the dropped
+ * connection stays in its room, detached, and messages for it keep being
+ * numbered and kept here. A client that connects again with /resume and
+ * the last number it got takes the session over and is sent only what it
+ * missed, nobody sees it leave or join. A session nobody resumes in time
+ * ends like any other disconnect
+ *
+ * Only the newest retainLimit unacknowledged messages are kept, a client
+ * that missed more is told how many it lost. The buffer holds the shared
+ * ChatMessage, not a copy of its bytes
+ *
+ * All state is guarded by the session's lock; the server also holds it
+ * while it moves a resumed session to its new connection. A message is
+ * queued for the client outside that lock, a sender stuck on a full queue
+ * (--slow block) must not hold up acks or a resume, but under sendLock so
+ * the numbers still reach the queue in order
+ */
+public final class ChatSession {
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // Messages queued again by the dedupe check below are compared with this many
+    private static final int RECENT = 16;
+
+    // Hard to guess, resuming a session means speaking as its user
+    final String id;
+    private final int retainLimit;
+    private final Object sendLock = new Object();
+
+    // The connection in the rooms and the users map for this session. While
+    // attached it is the live connection, while detached the dropped one
+    private volatile ChatConnection member;
+
+    // The member before the last resume. A broadcast that picked it up just
+    // before the swap still reaches the session through it
+    private ChatConnection previous;
+
+    private boolean attached = true;
+    private boolean ended;
+
+    // Unacknowledged messages, numbered firstSeq, firstSeq + 1 ... lastSeq
+    private final ArrayDeque<ChatMessage> unacked = new ArrayDeque<>();
+    private long firstSeq = 1;
+    private long lastSeq;
+
+    // Messages numbered last, so one that reaches the session through both
+    // the old and the new member during a resume is only numbered once
+    private final ChatMessage[] recent = new ChatMessage[RECENT];
+    private int recentAt;
+
+    ChatSession(ChatConnection member, int retainLimit) {
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        this.id = hex.toString();
+        this.member = member;
+        this.retainLimit = retainLimit;
+    }
+
+    ChatConnection member() {
+        return member;
+    }
+
+    // Number a message for the session, keep it, and queue it if attached
+    // Called through ChatConnection.send by whoever is sending
+    void send(ChatConnection from, ChatMessage message) {
+        synchronized (sendLock) {
+            long seq;
+            ChatConnection to;
+            synchronized (this) {
+                if (ended || (from != member && from != previous)) {
+                    return;
+                }
+                for (ChatMessage seen : recent) {
+                    if (seen == message) {
+                        return;
+                    }
+                }
+                recent[recentAt] = message;
+                recentAt = (recentAt + 1) % RECENT;
+
+                seq = ++lastSeq;
+                unacked.addLast(message);
+                if (unacked.size() > retainLimit) {
+                    unacked.pollFirst();
+                    firstSeq++;
+                }
+                to = attached ? member : null;
+            }
+            if (to != null) {
+                to.sendSequenced(seq, message);
+            }
+        }
+    }
+
+    // The client has everything up to seq
+    synchronized void ack(long seq) {
+        seq = Math.min(seq, lastSeq);
+        while (firstSeq <= seq && !unacked.isEmpty()) {
+            unacked.pollFirst();
+            firstSeq++;
+        }
+    }
+
+    // The member's connection is gone: keep the session for a resume
+    // False if it was not the member or the session has ended
+    synchronized boolean detach(ChatConnection connection) {
+        if (ended || connection != member) {
+            return false;
+        }
+        attached = false;
+        return true;
+    }
+
+    // Nobody resumed it in time: true if it is still detached from that
+    // connection, the session is over then and the user leaves
+    synchronized boolean expire(ChatConnection connection) {
+        if (ended || attached || connection != member) {
+            return false;
+        }
+        end();
+        return true;
+    }
+
+    // The user left on purpose, there is nothing to resume
+    synchronized void end() {
+        ended = true;
+        unacked.clear();
+        previous = null;
+    }
+
+    // Its own client could not resume it, so it ends now rather than at
+    // expiry. True if it was detached: its connection has left already and
+    // nothing else will make the user leave
+    synchronized boolean endRefused() {
+        boolean detached = !ended && !attached;
+        end();
+        return detached;
+    }
+
+    synchronized boolean isEnded() {
+        return ended;
+    }
+
+    // A client that got everything up to acked takes the session over:
+    // what it missed is queued for it again, in order, with the same numbers
+    // Returns how many messages it missed that were no longer kept
+    // The caller holds the lock and has put the connection in the room
+    long attach(ChatConnection connection, long acked) {
+        ack(acked);
+        long lost = Math.max(0, firstSeq - acked - 1);
+        previous = member;
+        member = connection;
+        attached = true;
+        long seq = firstSeq;
+        for (ChatMessage message : unacked) {
+            connection.sendSequenced(seq++, message);
+        }
+        ChatMetrics.sessionRetransmits.add(unacked.size());
+        return lost;
+    }
+
+    // Numbers above this were never sent, a client claiming them is confused
+    synchronized long lastSeq() {
+        return lastSeq;
+    }
+}
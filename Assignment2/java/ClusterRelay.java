@@ -0,0 +1,440 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * This class links several GroupChatServer nodes into one chat
+ * (--cluster <port> --peers host:port,...). Every node listens for peer
+ * links on its cluster port and dials the peers it was given; a link is
+ * used both ways, so for each pair of nodes it is enough that one of them
+ * lists the other. Every node must be linked to every other one, messages
+ * are not passed on to a third node
+ *
+ * A chat message from a local client is queued once per peer node, not once
+ * per user there; the peer broadcasts it to its own members of the room.
+ * Each peer has a writer thread that takes everything queued for it (up to
+ * MAX_BATCH messages) and sends it as one batch, so a busy node pays one
+ * socket write per batch and not per message
+ *
+ * Every message has an id: the node it came from, that node's start time
+ * (its epoch) and a sequence number. A link that breaks in the middle of a
+ * batch sends the whole batch again on the next link, and the receiver
+ * drops the ids it has seen already. Links keep the order, so it is enough
+ * to remember the newest id of every origin node
+ *
+ * The cluster port only listens on --cluster-bind, loopback by default.
+ * With --cluster-secret-file every link proves both ends know the secret
+ * before anything is relayed: each side sends a random challenge and
+ * answers the other's with an HMAC-SHA256 of it and its own node id, keyed
+ * by the secret. Links between a node with a secret and one without fail
+ *
+ * Link protocol, DataOutputStream encoding
+ * Strings go as an int length and that many UTF-8 bytes (at most
+ * MAX_NAME_BYTES), called "str" below
+ *
+ *   hello   int MAGIC, str node id, boolean secret, and with a secret
+ *           CHALLENGE_LENGTH random bytes (each side sends one when the
+ *           link opens)
+ *   proof   with a secret, the HMAC of the peer's challenge and our node id
+ *   batch   int count, then per message: str origin, long epoch, long seq,
+ *           str room ("" for everybody), str sender, int length, payload bytes
+ */
+public class ClusterRelay {
+    private static final int MAGIC = 0x47435233; // "GCR3"
+
+    // Longest origin, room or sender a link carries, in UTF-8 bytes. Usernames
+    // and room names are far shorter, only a --node name could be this long
+    private static final int MAX_NAME_BYTES = 1024;
+    private static final int CHALLENGE_LENGTH = 32;
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final int MAX_BATCH = 1024;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final long RETRY_MILLIS = 1000;
+
+    private final GroupChatServer server;
+    private final String nodeId;
+    private final long epoch = System.currentTimeMillis();
+    private final AtomicLong nextSeq = new AtomicLong();
+    private final ServerSocket serverSocket;
+    private final SecureRandom random = new SecureRandom();
+
+    // HMAC key for link proofs, null when the cluster has no secret
+    private final SecretKeySpec secret;
+
+    // Peer node id to its queue and link, made when a node first links up
+    private final ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap<>();
+
+    // Origin node id to the newest { epoch, seq } received from it
+    private final ConcurrentHashMap<String, long[]> seen = new ConcurrentHashMap<>();
+
+    // One chat message on its way between nodes
+    private static final class Relayed {
+        final String origin;
+        final long epoch;
+        final long seq;
+        final String room;
+        final String sender;
+        final byte[] payload;
+
+        Relayed(String origin, long epoch, long seq, String room, String sender, byte[] payload) {
+            this.origin = origin;
+            this.epoch = epoch;
+            this.seq = seq;
+            this.room = room;
+            this.sender = sender;
+            this.payload = payload;
+        }
+    }
+
+    // secret null for a cluster without one, only sensible on loopback
+    public ClusterRelay(GroupChatServer server, String nodeId, InetAddress bind, int clusterPort, byte[] secret,
+            List<InetSocketAddress> addresses) throws IOException {
+        if (nodeId.getBytes(StandardCharsets.UTF_8).length > MAX_NAME_BYTES) {
+            throw new IOException("node name " + nodeId + " is longer than " + MAX_NAME_BYTES + " bytes");
+        }
+        this.server = server;
+        this.nodeId = nodeId;
+        this.secret = secret == null ? null : new SecretKeySpec(secret, "HmacSHA256");
+        this.serverSocket = new ServerSocket(clusterPort, 50, bind);
+        ChatLog.info("Cluster node " + nodeId + " listening for peers on " + bind.getHostAddress() + ":" + clusterPort
+                + (secret == null ? "" : ", peers need the cluster secret"));
+
+        start("relay-accept", this::acceptLoop);
+        for (InetSocketAddress address : addresses) {
+            start("relay-dial-" + address, () -> dialLoop(address));
+        }
+    }
+
+    private static void start(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // A message from a local client or the console, room null for everybody
+    // Never blocks: a peer whose queue is full misses it, and that is counted
+    public void publish(String room, ChatMessage message) {
+        Relayed relayed = new Relayed(nodeId, epoch, nextSeq.getAndIncrement(), room == null ? "" : room,
+                message.getSender(), message.payload());
+        // A peer would refuse it and the link would fail on every retry
+        if (!fits(relayed.room) || !fits(relayed.sender)) {
+            ChatLog.warn("Not relaying a message from " + relayed.sender + ", its sender or room name is too long");
+            ChatMetrics.relayDropped.increment();
+            return;
+        }
+        for (Peer peer : peers.values()) {
+            if (!peer.queue.offer(relayed)) {
+                ChatMetrics.relayDropped.increment();
+            }
+        }
+    }
+
+    // Peer links come in here
+    private void acceptLoop() {
+        while (true) {
+            try {
+                Socket socket = serverSocket.accept();
+                start("relay-link", () -> {
+                    try {
+                        serve(new Link(socket, false));
+                    } catch (IOException e) {
+                        ChatLog.warn("Peer link from " + socket.getRemoteSocketAddress() + " failed: "
+                                + e.getMessage());
+                        closeQuietly(socket);
+                    }
+                });
+            } catch (IOException e) {
+                ChatLog.error("Error accepting peer link: " + e.getMessage());
+            }
+        }
+    }
+
+    // Keep a link to the peer at this address, unless it dialed us already
+    private void dialLoop(InetSocketAddress address) {
+        String peerId = null;
+        boolean reported = false;
+        while (true) {
+            Peer peer = peerId == null ? null : peers.get(peerId);
+            if (peer == null || !peer.isLinked()) {
+                Socket socket = new Socket();
+                try {
+                    socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+                    Link link = new Link(socket, true);
+                    peerId = link.peerId;
+                    reported = false;
+                    serve(link);
+                } catch (IOException e) {
+                    closeQuietly(socket);
+                    if (!reported) {
+                        ChatLog.warn("Cannot reach peer " + address + ", will keep trying: " + e.getMessage());
+                        reported = true;
+                    }
+                }
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Use the link for its peer and read from it until it breaks
+    private void serve(Link link) {
+        Peer peer = peers.computeIfAbsent(link.peerId, Peer::new);
+        if (!peer.attach(link)) {
+            link.close();
+            return;
+        }
+        ChatLog.info("Linked to cluster node " + link.peerId);
+        try {
+            while (true) {
+                int count = link.in.readInt();
+                for (int i = 0; i < count; i++) {
+                    received(link.read());
+                }
+            }
+        } catch (IOException e) {
+            // The link is gone, the dialing side will make a new one
+        }
+        peer.detach(link);
+        link.close();
+    }
+
+    private void received(Relayed relayed) {
+        ChatMetrics.relayIn.increment();
+        if (!firstTime(relayed)) {
+            ChatMetrics.relayDuplicates.increment();
+            return;
+        }
+        ChatMessage message = new ChatMessage(relayed.sender, ByteBuffer.wrap(relayed.payload), server.directBuffers);
+        server.relayReceived(relayed.room.isEmpty() ? null : relayed.room, message);
+    }
+
+    // Ids from one origin only grow, anything not newer was seen before
+    private boolean firstTime(Relayed relayed) {
+        boolean[] fresh = new boolean[1];
+        seen.compute(relayed.origin, (origin, last) -> {
+            if (last == null || relayed.epoch > last[0] || (relayed.epoch == last[0] && relayed.seq > last[1])) {
+                fresh[0] = true;
+                return new long[] { relayed.epoch, relayed.seq };
+            }
+            return last;
+        });
+        return fresh[0];
+    }
+
+    private static boolean fits(String name) {
+        return name.length() * 3 <= MAX_NAME_BYTES || name.getBytes(StandardCharsets.UTF_8).length <= MAX_NAME_BYTES;
+    }
+
+    private static void writeString(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_NAME_BYTES) {
+            throw new ProtocolException("bad name length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing left to do with it
+        }
+    }
+
+    // One open connection to another node, after the hellos
+    private final class Link {
+        final Socket socket;
+        final boolean dialed;
+        final DataInputStream in;
+        final DataOutputStream out;
+        final String peerId;
+
+        Link(Socket socket, boolean dialed) throws IOException {
+            this.socket = socket;
+            this.dialed = dialed;
+            socket.setTcpNoDelay(true);
+            // A connection that never finishes the hellos must not keep its thread
+            socket.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+
+            byte[] challenge = new byte[CHALLENGE_LENGTH];
+            random.nextBytes(challenge);
+            out.writeInt(MAGIC);
+            writeString(out, nodeId);
+            out.writeBoolean(secret != null);
+            if (secret != null) {
+                out.write(challenge);
+            }
+            out.flush();
+            if (in.readInt() != MAGIC) {
+                throw new ProtocolException("not a cluster node");
+            }
+            this.peerId = readString(in);
+            if (peerId.equals(nodeId)) {
+                throw new ProtocolException("peer has our own node id " + nodeId);
+            }
+            if (in.readBoolean() != (secret != null)) {
+                throw new ProtocolException(secret != null ? "peer has no cluster secret" : "peer wants a cluster secret");
+            }
+            if (secret != null) {
+                byte[] peerChallenge = new byte[CHALLENGE_LENGTH];
+                in.readFully(peerChallenge);
+                out.write(proof(peerChallenge, nodeId));
+                out.flush();
+                byte[] peerProof = new byte[CHALLENGE_LENGTH];
+                in.readFully(peerProof);
+                if (!MessageDigest.isEqual(peerProof, proof(challenge, peerId))) {
+                    throw new ProtocolException("peer " + peerId + " does not know the cluster secret");
+                }
+            }
+            // A linked peer may well be quiet for longer
+            socket.setSoTimeout(0);
+        }
+
+        // What a node called id answers to the challenge, 32 bytes
+        private byte[] proof(byte[] challenge, String id) throws IOException {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(secret);
+                mac.update(challenge);
+                return mac.doFinal(id.getBytes(StandardCharsets.UTF_8));
+            } catch (GeneralSecurityException e) {
+                throw new IOException("cannot compute the link proof", e);
+            }
+        }
+
+        // Id of the node that opened the link
+        String dialer() {
+            return dialed ? nodeId : peerId;
+        }
+
+        // The whole batch goes out with one flush
+        void write(List<Relayed> batch) throws IOException {
+            out.writeInt(batch.size());
+            for (Relayed relayed : batch) {
+                writeString(out, relayed.origin);
+                out.writeLong(relayed.epoch);
+                out.writeLong(relayed.seq);
+                writeString(out, relayed.room);
+                writeString(out, relayed.sender);
+                out.writeInt(relayed.payload.length);
+                out.write(relayed.payload);
+            }
+            out.flush();
+        }
+
+        Relayed read() throws IOException {
+            String origin = readString(in);
+            long epoch = in.readLong();
+            long seq = in.readLong();
+            String room = readString(in);
+            String sender = readString(in);
+            int length = in.readInt();
+            if (length < 0 || length > ChatFrame.MAX_FRAME_LENGTH) {
+                throw new ProtocolException("bad message length " + length);
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            return new Relayed(origin, epoch, seq, room, sender, payload);
+        }
+
+        void close() {
+            closeQuietly(socket);
+        }
+    }
+
+    // Another node: the messages queued for it and the link they go out on
+    private final class Peer implements Runnable {
+        final String id;
+        final BlockingQueue<Relayed> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private Link link;
+
+        Peer(String id) {
+            this.id = id;
+            start("relay-" + id, this);
+        }
+
+        synchronized boolean isLinked() {
+            return link != null;
+        }
+
+        // When both nodes dial each other, both keep the link dialed by the
+        // smaller id. A new link from the same dialer replaces the old one
+        synchronized boolean attach(Link candidate) {
+            if (link != null) {
+                String dialer = link.dialer();
+                if (!dialer.equals(candidate.dialer()) && dialer.compareTo(candidate.dialer()) < 0) {
+                    return false;
+                }
+                link.close();
+            }
+            link = candidate;
+            notifyAll();
+            return true;
+        }
+
+        synchronized void detach(Link old) {
+            if (link == old) {
+                link = null;
+                ChatLog.warn("Lost link to cluster node " + id);
+            }
+        }
+
+        private synchronized Link awaitLink() throws InterruptedException {
+            while (link == null) {
+                wait();
+            }
+            return link;
+        }
+
+        // The writer thread starts here
+        public void run() {
+            List<Relayed> batch = new ArrayList<>(MAX_BATCH);
+            try {
+                while (true) {
+                    if (batch.isEmpty()) {
+                        batch.add(queue.take());
+                        queue.drainTo(batch, MAX_BATCH - 1);
+                    }
+                    Link current = awaitLink();
+                    try {
+                        current.write(batch);
+                        ChatMetrics.relayOut.add(batch.size());
+                        ChatMetrics.relayBatch.record(batch.size());
+                        batch.clear();
+                    } catch (IOException e) {
+                        // Sent again on the next link, the peer drops what it already has
+                        current.close();
+                        detach(current);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Only at shutdown
+            }
+        }
+    }
+}
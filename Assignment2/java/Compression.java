@@ -0,0 +1,93 @@
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * This class deflates big chat messages for binary clients that agreed to
+ * it (ChatFrame version 2, server started with --compress <bytes>)
+ *
+ * A DEFLATED frame is a MESSAGE frame whose payload is
+ *   int    length of the message text in bytes
+ *   bytes  the text, raw deflate (no zlib header)
+ *
+ * The server deflates a message once per broadcast (ChatMessage keeps the
+ * frame) and only when it is at least --compress bytes long; short chat
+ * lines are sent as they are, deflating them costs more than it saves
+ * A message that does not get smaller is sent as it is too
+ *
+ * A Deflater holds a few hundred KB of native memory, so they are pooled
+ * and reset between messages instead of made per message or per thread
+ */
+public final class Compression {
+    // Nobody sends chat messages this big, a bigger length is a broken peer
+    private static final int MAX_TEXT_LENGTH = 16 << 20;
+
+    private static final Queue<Deflater> DEFLATERS = new ConcurrentLinkedQueue<>();
+
+    private Compression() {
+    }
+
+    // The DEFLATED payload for the text, or null if it would not be smaller
+    public static ByteBuffer deflate(byte[] text) {
+        long start = System.nanoTime();
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED, true);
+        }
+        try {
+            deflater.setInput(text);
+            deflater.finish();
+            // Anything that does not fit is not worth sending deflated
+            ByteBuffer payload = ByteBuffer.allocate(4 + text.length);
+            payload.putInt(text.length);
+            deflater.deflate(payload);
+            if (!deflater.finished()) {
+                ChatMetrics.compressSkipped.increment();
+                return null;
+            }
+            payload.flip();
+            ChatMetrics.compressedMessages.increment();
+            ChatMetrics.compressInBytes.add(text.length);
+            ChatMetrics.compressOutBytes.add(payload.remaining());
+            return payload;
+        } finally {
+            deflater.reset();
+            DEFLATERS.offer(deflater);
+            ChatMetrics.compressNanos.record(System.nanoTime() - start);
+        }
+    }
+
+    // The text of a DEFLATED payload, the inflater is reset and can be reused
+    public static byte[] inflate(ByteBuffer payload, Inflater inflater) throws IOException {
+        payload = payload.duplicate();
+        int length = payload.getInt();
+        if (length < 0 || length > MAX_TEXT_LENGTH) {
+            throw new ProtocolException("bad deflated length " + length);
+        }
+        byte[] text = new byte[length];
+        try {
+            inflater.setInput(payload);
+            int count = 0;
+            while (count < length && !inflater.finished()) {
+                int more = inflater.inflate(text, count, length - count);
+                if (more == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                count += more;
+            }
+            if (count != length) {
+                throw new ProtocolException("deflated message is " + count + " bytes, not " + length);
+            }
+            return text;
+        } catch (DataFormatException e) {
+            throw new ProtocolException("bad deflated message: " + e.getMessage());
+        } finally {
+            inflater.reset();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * This class sends and receives files over a binary protocol connection
+ * (the TwoWayAsyncMesg programs, typed as "/send <file> [offset]")
+ *
+ * A file goes as ChatFrame frames carrying its name in the sender field
+ *   FILE_START  payload: long offset, long file size
+ *   FILE_DATA   payload: the next chunk of the file, up to about 1 MB
+ *   FILE_END    no payload
+ * and chat messages can still go out between two chunks
+ *
+ * The sender hands every chunk to FileChannel.transferTo, so file bytes go
+ * from the page cache to the socket without passing through the JVM
+ * The receiver reads frames into a direct buffer (see ChatFrame.Reader)
+ * and writes chunks to the file from there, so they stay out of the Java
+ * heap on that side too
+ *
+ * To resume, send the file again from the number of bytes the receiver
+ * says it has
+ */
+public class FileTransfer {
+    // Received files are put here, under their base name only
+    static final Path RECEIVED = Paths.get("received");
+
+    // File bytes per FILE_DATA frame, leaves room for the header and the name
+    private static final int CHUNK = ChatFrame.MAX_FRAME_LENGTH - ChatFrame.HEADER_LENGTH - 255;
+
+    private FileTransfer() {
+    }
+
+    // Send the file from offset on. Every other writer to the channel must
+    // synchronize on lock, a chunk's header and bytes go out together under it
+    public static void send(WritableByteChannel channel, Object lock, Path file, long offset) throws IOException {
+        byte[] name = file.getFileName().toString().getBytes(StandardCharsets.UTF_8);
+        if (name.length > 255) {
+            throw new IOException("file name too long");
+        }
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = in.size();
+            if (offset < 0 || offset > size) {
+                throw new IOException("offset " + offset + " is outside " + file + " (" + size + " bytes)");
+            }
+            long start = System.nanoTime();
+            ByteBuffer sender = ByteBuffer.wrap(name);
+            write(channel, lock, ChatFrame.encode(ChatFrame.FILE_START, sender,
+                    ByteBuffer.allocate(16).putLong(offset).putLong(size).flip(), false));
+
+            ByteBuffer header = ByteBuffer.allocate(ChatFrame.HEADER_LENGTH + name.length);
+            for (long position = offset; position < size; ) {
+                int chunk = (int) Math.min(CHUNK, size - position);
+                header.clear();
+                header.putInt(ChatFrame.HEADER_LENGTH - 4 + name.length + chunk)
+                        .put(ChatFrame.FILE_DATA).put((byte) name.length).put(name).flip();
+                synchronized (lock) {
+                    while (header.hasRemaining()) {
+                        channel.write(header);
+                    }
+                    long sent = 0;
+                    while (sent < chunk) {
+                        long count = in.transferTo(position + sent, chunk - sent, channel);
+                        if (count <= 0 && position + sent >= in.size()) {
+                            // Too late to stop cleanly, the frame is half sent
+                            throw new IOException(file + " got shorter while sending it");
+                        }
+                        sent += count;
+                    }
+                }
+                position += chunk;
+            }
+            write(channel, lock, ChatFrame.encode(ChatFrame.FILE_END, sender, ByteBuffer.allocate(0), false));
+            report("Sent", file.getFileName().toString(), size - offset, start);
+        }
+    }
+
+    private static void write(WritableByteChannel channel, Object lock, ByteBuffer frame) throws IOException {
+        synchronized (lock) {
+            while (frame.hasRemaining()) {
+                channel.write(frame);
+            }
+        }
+    }
+
+    private static void report(String what, String name, long bytes, long startNanos) {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        ChatLog.display(String.format("*** %s %s: %d bytes in %.2f s, %.1f MB/s",
+                what, name, bytes, seconds, bytes / 1e6 / Math.max(seconds, 1e-9)));
+    }
+
+    // The receiving side, for the one thread reading frames from the connection
+    public static class Receiver {
+        // A file being received
+        private static class Incoming {
+            FileChannel out;
+            long position;
+            long size;
+            long start;
+            long startNanos;
+        }
+
+        private final Map<String, Incoming> files = new HashMap<>();
+
+        // Takes the frame if it belongs to a file transfer and returns true
+        public boolean frameReceived(ByteBuffer frame) {
+            byte type = ChatFrame.type(frame);
+            if (type != ChatFrame.FILE_START && type != ChatFrame.FILE_DATA && type != ChatFrame.FILE_END) {
+                return false;
+            }
+            String name = ChatFrame.text(ChatFrame.sender(frame));
+            try {
+                if (type == ChatFrame.FILE_START) {
+                    start(name, ChatFrame.payload(frame));
+                    return true;
+                }
+                Incoming file = files.get(name);
+                if (file == null) {
+                    return true; // Its start was refused
+                }
+                if (type == ChatFrame.FILE_DATA) {
+                    ByteBuffer payload = ChatFrame.payload(frame);
+                    while (payload.hasRemaining()) {
+                        file.position += file.out.write(payload, file.position);
+                    }
+                } else {
+                    files.remove(name).out.close();
+                    report("Received", name, file.position - file.start, file.startNanos);
+                    ChatLog.display("*** " + RECEIVED.resolve(name) + " has " + file.position + " of "
+                            + file.size + " bytes");
+                }
+            } catch (IOException e) {
+                failed(name, e.getMessage());
+            } catch (RuntimeException e) {
+                // Whatever the peer sent, only this transfer is dropped
+                failed(name, e.toString());
+            }
+            return true;
+        }
+
+        private void failed(String name, String reason) {
+            ChatLog.display("*** Receiving " + name + " failed: " + reason);
+            Incoming file = files.remove(name);
+            if (file != null) {
+                closeQuietly(file);
+            }
+        }
+
+        private void start(String name, ByteBuffer payload) throws IOException {
+            // Only a plain file name, never a path out of the received directory
+            if (name.isEmpty() || name.equals(".") || name.equals("..") || name.contains("/") || name.contains("\\")) {
+                throw new IOException("refusing file name " + name);
+            }
+            Path path;
+            try {
+                path = RECEIVED.resolve(name);
+            } catch (InvalidPathException e) {
+                throw new IOException("refusing file name " + name);
+            }
+            if (payload.remaining() < 16) {
+                throw new ProtocolException("FILE_START has " + payload.remaining() + " bytes, not 16");
+            }
+            Incoming file = new Incoming();
+            file.start = payload.getLong(payload.position());
+            file.size = payload.getLong(payload.position() + 8);
+            if (file.start < 0 || file.size < file.start) {
+                throw new ProtocolException("FILE_START offset " + file.start + " is outside " + file.size + " bytes");
+            }
+            file.position = file.start;
+            file.startNanos = System.nanoTime();
+
+            Files.createDirectories(RECEIVED);
+            file.out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (file.out.size() < file.start) {
+                long have = file.out.size();
+                file.out.close();
+                throw new IOException("cannot resume at " + file.start + ", only " + have + " bytes are here");
+            }
+            // Whatever was there past the resume point gets sent again
+            file.out.truncate(file.start);
+            Incoming old = files.put(name, file);
+            if (old != null) {
+                closeQuietly(old);
+            }
+            ChatLog.display("*** Receiving " + name + " (" + file.size + " bytes) from offset " + file.start);
+        }
+
+        // Report what was left unfinished when the connection ended
+        public void connectionClosed() {
+            for (Map.Entry<String, Incoming> entry : files.entrySet()) {
+                ChatLog.display("*** " + entry.getKey() + " is incomplete, " + entry.getValue().position
+                        + " bytes received, resume with /send <file> " + entry.getValue().position);
+                closeQuietly(entry.getValue());
+            }
+            files.clear();
+        }
+
+        private static void closeQuietly(Incoming file) {
+            try {
+                file.out.close();
+            } catch (IOException e) {
+                // Nothing left to do with it
+            }
+        }
+    }
+}
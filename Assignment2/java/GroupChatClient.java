@@ -1,95 +1,196 @@
 // Source code is decompiled from a .class file using FernFlower decompiler.
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /*
  * This class does all of the group chat client's job
  * The only changes I really made was in the run() method, 
  * where I added the username prompt and the message sending.
+ * With --binary it talks the ChatFrame protocol instead of text lines.
+ *
+ * The socket side lives in AsyncChatClient. The main thread prints what
+ * arrives a batch at a time, one console write per batch instead of one
+ * per line, so a busy room does not back up behind the console
+ *
+ * When the server goes away (e.g. it restarts) the client connects again
+ * after a random wait, so a room full of clients does not all come back
+ * at the same moment. The longest possible wait doubles with each failed
+ * try, from RECONNECT_BASE_MS up to RECONNECT_MAX_MS
+ *
+ * The client keeps a resumable session on the server, so coming back
+ * after a dropped connection it takes the session over: it is still in its
+ * room, nobody sees it leave and join again, and it is sent only the
+ * messages it missed. Quitting ends the session
  */
 public class GroupChatClient implements Runnable {
+   // lines the server sent that may wait for the console, and lines per console write
+   private static final int INBOUND_CAPACITY = 8192;
+   private static final int RENDER_BATCH = 1024;
+
+   // reconnect backoff, see above
+   private static final long RECONNECT_BASE_MS = 1000;
+   private static final long RECONNECT_MAX_MS = 30_000;
+   private static final int RECONNECT_ATTEMPTS = 8;
+
    private BufferedReader fromUserReader;
-   private PrintWriter toSockWriter;
+   // the connection in use, replaced on reconnect
+   private volatile AsyncChatClient client;
+   private String username;
+   private volatile boolean userQuit;
 
-   public GroupChatClient(BufferedReader reader, PrintWriter writer) {
+   public GroupChatClient(BufferedReader reader, AsyncChatClient client) {
       this.fromUserReader = reader;
-      this.toSockWriter = writer;
+      this.client = client;
+   }
+
+   // the username goes to the first connection, with a session to resume later
+   private synchronized void login(String name) throws IOException {
+      username = name;
+      client.hello(name);
+      client.requestSession();
+   }
+
+   // a reconnect resumes the session, or logs in again if there is none
+   private synchronized void replaceClient(AsyncChatClient fresh) throws IOException {
+      AsyncChatClient lost = client;
+      client = fresh;
+      if (lost.sessionId() != null) {
+         System.out.println("*** Resuming after message " + lost.lastSeq());
+         fresh.resume(lost.sessionId(), lost.lastSeq(), username);
+      } else if (username != null) {
+         fresh.hello(username);
+         fresh.requestSession();
+      }
    }
 
    public void run() {
       try {
          // basically checks first message from client as its username
-         String username = fromUserReader.readLine();
-         if (username == null) {
+         String name = fromUserReader.readLine();
+         if (name == null) {
             System.out.println("*** Client closing connection");
+            userQuit = true;
+            client.close();
             return;
          }
-         toSockWriter.println(username);
+         try {
+            login(name);
+         } catch (IOException e) {
+            // not connected right now, a reconnect sends it
+         }
 
          // Then send messages once username is set. rest of run() is same as TwoWayAsyncMesgClient.java
          while (true) {
             String message = fromUserReader.readLine();
-            if (message == null) {
+            // /quit leaves like EOF does; sent to the server it would only
+            // look like a dropped connection here, and we would reconnect
+            if (message == null || message.trim().equals("/quit")) {
                System.out.println("*** Client closing connection");
                break;
             }
-            toSockWriter.println(message);
+            try {
+               if (!client.send(message)) {
+                  System.out.println("*** Server is not keeping up, message not sent");
+               }
+            } catch (IOException e) {
+               System.out.println("*** Not connected, message not sent");
+            }
          }
-      } catch (Exception e) {
+      } catch (IOException e) {
          System.out.println(e);
-         System.exit(1);
       }
-      System.exit(0);
+      userQuit = true;
+      client.close();
    }
 
    //args[0] is host, args[1] is port
    //this is practically the same as TwoWayAsyncMesgClient.java main method 
    public static void main(String[] args) {
-      if (args.length != 2) {
-         System.out.println("usage: java GroupChatClient <host> <port>");
+      if (args.length < 2 || args.length > 3 || (args.length == 3 && !args[2].equals("--binary"))) {
+         System.out.println("usage: java GroupChatClient <host> <port> [--binary]");
          System.exit(1);
       }
+      boolean binary = args.length == 3;
 
-      Socket sock = null;
-
+      AsyncChatClient client = null;
       try {
-         sock = new Socket(args[0], Integer.parseInt(args[1]));
+         client = AsyncChatClient.connect(args[0], Integer.parseInt(args[1]), binary, INBOUND_CAPACITY);
          System.out.println("Connected to server at " + args[0] + ":" + args[1]);
-      } catch (Exception var6) {
-         System.out.println(var6);
-         System.exit(1);
-      }
-
-      try {
-         PrintWriter toSockWriter = new PrintWriter(sock.getOutputStream(), true);
-         BufferedReader fromUserReader = new BufferedReader(new InputStreamReader(System.in));
-         // Thread child = new Thread(new TwoWayAsyncMesgClient(fromUserReader, toSockWriter));
-         Thread child = new Thread(new GroupChatClient(fromUserReader, toSockWriter));
-         child.start();
       } catch (Exception e) {
          System.out.println(e);
          System.exit(1);
       }
 
-      try {
-         BufferedReader fromSockReader = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+      // the keyboard thread must not keep the program alive once the server is gone
+      BufferedReader fromUserReader = new BufferedReader(new InputStreamReader(System.in));
+      GroupChatClient chat = new GroupChatClient(fromUserReader, client);
+      Thread child = new Thread(chat);
+      child.setDaemon(true);
+      child.start();
 
-         while(true) {
-            String line = fromSockReader.readLine();
-            if (line == null) {
-               System.out.println("*** Server closed connection");
-               break;
-            }
+      chat.serve(args[0], Integer.parseInt(args[1]), binary);
+   }
 
-            System.out.println("Server: " + line);
+   // show messages until the user quits, reconnecting whenever the server goes away
+   private void serve(String host, int port, boolean binary) {
+      while (true) {
+         render(client);
+         if (userQuit || client.isClosed()) {
+            return;
+         }
+         if (client.cause() != null) {
+            System.out.println(client.cause());
+         } else {
+            System.out.println("*** Server closed connection");
+         }
+         if (!reconnect(host, port, binary)) {
+            System.out.println("*** Giving up after " + RECONNECT_ATTEMPTS + " tries");
+            return;
          }
-      } catch (Exception e) {
-         System.out.println(e);
-         System.exit(1);
       }
+   }
+
+   // wait a random time up to the backoff window before each try ("full jitter")
+   private boolean reconnect(String host, int port, boolean binary) {
+      for (int attempt = 0; attempt < RECONNECT_ATTEMPTS && !userQuit; attempt++) {
+         long window = Math.min(RECONNECT_MAX_MS, RECONNECT_BASE_MS << attempt);
+         long wait = ThreadLocalRandom.current().nextLong(window + 1);
+         System.out.println("*** Reconnecting in " + wait + " ms");
+         try {
+            Thread.sleep(wait);
+            replaceClient(AsyncChatClient.connect(host, port, binary, INBOUND_CAPACITY));
+            System.out.println("Connected to server at " + host + ":" + port);
+            return true;
+         } catch (InterruptedException e) {
+            return false;
+         } catch (IOException e) {
+            System.out.println("*** " + e.getMessage());
+         }
+      }
+      return false;
+   }
 
-      System.exit(0);
+   // print everything the server sends until the connection ends, a batch per write
+   private static void render(AsyncChatClient client) {
+      List<String> batch = new ArrayList<>(RENDER_BATCH);
+      StringBuilder text = new StringBuilder();
+      try {
+         while (client.drain(batch, RENDER_BATCH, 1, TimeUnit.SECONDS) >= 0) {
+            for (String line : batch) {
+               text.append("Server: ").append(line).append(System.lineSeparator());
+            }
+            System.out.print(text);
+            System.out.flush();
+            batch.clear();
+            text.setLength(0);
+         }
+      } catch (InterruptedException e) {
+         // only when the program ends
+      }
    }
 }
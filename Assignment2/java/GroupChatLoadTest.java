@@ -0,0 +1,316 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * This class is a headless load generator for GroupChatServer
+ * It opens many AsyncChatClient connections over loopback (or to any host),
+ * registers a username on each, has some of them send messages at a fixed
+ * total rate and measures how long each broadcast takes to reach every
+ * member, plus how many messages per second get delivered
+ *
+ * Every test message carries the time it was meant to be sent, so a
+ * sender that falls behind shows up as latency instead of hiding it
+ *
+ * With --storm it measures the accept path instead: every client connects
+ * at the same moment, like a crowd reconnecting after a network blip, and
+ * it reports accepts per second, connect time and time to first message
+ * (the server's "has joined" notice, so the username was handled too)
+ *
+ * Each connection has its client's I/O thread, and what it receives is
+ * taken from it by a reader that is a virtual thread on Java 21 and a
+ * platform thread on older JVMs, which limits how many can be opened
+ */
+public class GroupChatLoadTest {
+    private static final String MARKER = "LT ";
+
+    // Lines a client keeps that its reader has not taken yet
+    private static final int INBOUND = 1024;
+
+    // Only messages sent after warmup count
+    private static volatile boolean measuring;
+
+    private static final LatencyHistogram latency = new LatencyHistogram();
+    private static final LongAdder delivered = new LongAdder();
+    private static final LongAdder disconnects = new LongAdder();
+    private static final LongAdder refused = new LongAdder();
+
+    // Connection storm: connect time and time from connecting to the first message
+    private static final LatencyHistogram connectTime = new LatencyHistogram();
+    private static final LatencyHistogram firstMessage = new LatencyHistogram();
+    private static final LongAdder connectFailures = new LongAdder();
+
+    private static void usage() {
+        System.out.println("usage: java GroupChatLoadTest <host> <port> [--clients N] [--senders N]");
+        System.out.println("           [--rate messages/sec] [--duration sec] [--warmup sec] [--size bytes] [--binary]");
+        System.out.println("       java GroupChatLoadTest <host> <port> --storm [--clients N] [--binary]");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            usage();
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        int clients = 100;
+        int senders = -1;
+        double rate = 100;
+        int duration = 10;
+        int warmup = 2;
+        int size = 64;
+        boolean binary = false;
+        boolean storm = false;
+        try {
+            for (int i = 2; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--clients": clients = Integer.parseInt(args[++i]); break;
+                    case "--senders": senders = Integer.parseInt(args[++i]); break;
+                    case "--rate": rate = Double.parseDouble(args[++i]); break;
+                    case "--duration": duration = Integer.parseInt(args[++i]); break;
+                    case "--warmup": warmup = Integer.parseInt(args[++i]); break;
+                    case "--size": size = Integer.parseInt(args[++i]); break;
+                    case "--binary": binary = true; break;
+                    case "--storm": storm = true; break;
+                    default: usage();
+                }
+            }
+        } catch (RuntimeException e) {
+            usage();
+        }
+        if (senders < 0 || senders > clients) {
+            senders = Math.min(clients, 10);
+        }
+        if (storm) {
+            storm(host, port, clients, binary);
+            return;
+        }
+
+        // Connect everybody, each with its own reader
+        System.out.println("Connecting " + clients + " clients to " + host + ":" + port);
+        AsyncChatClient[] connections = new AsyncChatClient[clients];
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            connections[i] = AsyncChatClient.connect(host, port, binary, INBOUND);
+            connections[i].hello("load" + i);
+            VirtualThreads.start(new Receiver(connections[i]));
+        }
+        System.out.printf("Connected in %.2f s%n", (System.nanoTime() - connectStart) / 1e9);
+
+        // Let the join announcements settle before measuring
+        Thread.sleep(warmup * 1000L);
+        measuring = true;
+
+        // Pad messages to the requested size
+        StringBuilder padding = new StringBuilder(" ");
+        while (padding.length() < size - 24) {
+            padding.append('x');
+        }
+
+        long interval = (long) (1e9 / rate);
+        long start = System.nanoTime();
+        long end = start + duration * 1_000_000_000L;
+        long next = start;
+        AtomicLong sent = new AtomicLong();
+        while (next < end) {
+            long now = System.nanoTime();
+            if (now < next) {
+                LockSupport.parkNanos(next - now);
+                continue;
+            }
+            AsyncChatClient sender = connections[(int) (sent.get() % senders)];
+            try {
+                // Refused means the sender has too much unsent, the server is not keeping up
+                if (sender.send(MARKER + next + padding)) {
+                    sent.incrementAndGet();
+                } else {
+                    refused.increment();
+                }
+            } catch (IOException e) {
+                System.out.println("Send failed: " + e.getMessage());
+            }
+            next += interval;
+        }
+        long sendTime = System.nanoTime() - start;
+
+        // Give the last broadcasts time to arrive
+        long expected = sent.get() * clients;
+        long drainUntil = System.nanoTime() + 5_000_000_000L;
+        while (delivered.sum() < expected && System.nanoTime() < drainUntil) {
+            Thread.sleep(50);
+        }
+        measuring = false;
+
+        System.out.println();
+        System.out.printf("clients %d, senders %d, target rate %.0f msg/s, %s protocol%n",
+                clients, senders, rate, binary ? "binary" : "line");
+        System.out.printf("sent %d messages in %.2f s (%.0f msg/s)%n",
+                sent.get(), sendTime / 1e9, sent.get() / (sendTime / 1e9));
+        System.out.printf("delivered %d of %d (%.2f%%), %.0f deliveries/s%n",
+                delivered.sum(), expected, expected == 0 ? 0 : 100.0 * delivered.sum() / expected,
+                delivered.sum() / (sendTime / 1e9));
+        System.out.printf("broadcast latency ms: p50 %.3f  p99 %.3f  p999 %.3f  mean %.3f%n",
+                latency.percentile(0.50) / 1e6, latency.percentile(0.99) / 1e6,
+                latency.percentile(0.999) / 1e6, latency.mean() / 1e6);
+        if (refused.sum() > 0) {
+            System.out.println("sends refused, too much unsent: " + refused.sum());
+        }
+        if (disconnects.sum() > 0) {
+            System.out.println("disconnected clients: " + disconnects.sum());
+        }
+
+        for (AsyncChatClient connection : connections) {
+            connection.close();
+        }
+    }
+
+    // Connect every client at once and time how the server takes them
+    private static void storm(String host, int port, int clients, boolean binary) throws InterruptedException {
+        System.out.println("Connecting " + clients + " clients to " + host + ":" + port + " at once");
+        AsyncChatClient[] connections = new AsyncChatClient[clients];
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch connected = new CountDownLatch(clients);
+        CountDownLatch greeted = new CountDownLatch(clients);
+
+        // Java 21 has a thread per client ready to connect; older JVMs a big pool
+        ExecutorService connectors = VirtualThreads.isSupported() ? VirtualThreads.newExecutor()
+                : Executors.newFixedThreadPool(Math.min(clients, 512));
+        for (int i = 0; i < clients; i++) {
+            int index = i;
+            connectors.execute(() -> {
+                try {
+                    go.await();
+                    long start = System.nanoTime();
+                    AsyncChatClient client = AsyncChatClient.connect(host, port, binary, INBOUND);
+                    connectTime.record(System.nanoTime() - start);
+                    connections[index] = client;
+                    client.hello("storm" + index);
+                    VirtualThreads.start(new FirstMessage(client, start, greeted));
+                } catch (IOException e) {
+                    connectFailures.increment();
+                    greeted.countDown();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                connected.countDown();
+            });
+        }
+
+        Thread.sleep(500); // Let the connectors get to the gate
+        long start = System.nanoTime();
+        go.countDown();
+        connected.await();
+        long connectWall = System.nanoTime() - start;
+        boolean allGreeted = greeted.await(60, TimeUnit.SECONDS);
+        long greetWall = System.nanoTime() - start;
+        connectors.shutdown();
+
+        long ok = clients - connectFailures.sum();
+        System.out.println();
+        System.out.printf("%d clients, %s protocol: %d connected in %.2f s (%.0f accepts/s), %d failed%n",
+                clients, binary ? "binary" : "line", ok, connectWall / 1e9, ok / (connectWall / 1e9),
+                connectFailures.sum());
+        System.out.printf("connect ms: p50 %.1f  p99 %.1f  p999 %.1f  max %.1f%n",
+                connectTime.percentile(0.50) / 1e6, connectTime.percentile(0.99) / 1e6,
+                connectTime.percentile(0.999) / 1e6, connectTime.percentile(1.0) / 1e6);
+        System.out.printf("time to first message ms: p50 %.1f  p99 %.1f  p999 %.1f  max %.1f%n",
+                firstMessage.percentile(0.50) / 1e6, firstMessage.percentile(0.99) / 1e6,
+                firstMessage.percentile(0.999) / 1e6, firstMessage.percentile(1.0) / 1e6);
+        System.out.printf("%s greeted after %.2f s%n", allGreeted ? "everybody" : firstMessage.count() + " clients",
+                greetWall / 1e9);
+
+        for (AsyncChatClient connection : connections) {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+    // Takes what one client receives, on a thread of its own, until its
+    // connection ends. Lines come as "sender: text"
+    private abstract static class Reader implements Runnable {
+        private final AsyncChatClient client;
+
+        Reader(AsyncChatClient client) {
+            this.client = client;
+        }
+
+        public void run() {
+            List<String> lines = new ArrayList<>();
+            try {
+                while (client.drain(lines, INBOUND, 1, TimeUnit.SECONDS) >= 0) {
+                    for (String line : lines) {
+                        int colon = line.indexOf(": ");
+                        messageReceived(colon < 0 ? line : line.substring(colon + 2));
+                    }
+                    lines.clear();
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            disconnected();
+        }
+
+        abstract void messageReceived(String text);
+
+        abstract void disconnected();
+    }
+
+    // Times the first message a storm client gets
+    private static class FirstMessage extends Reader {
+        private final long start;
+        private final CountDownLatch greeted;
+        private boolean seen;
+
+        FirstMessage(AsyncChatClient client, long start, CountDownLatch greeted) {
+            super(client);
+            this.start = start;
+            this.greeted = greeted;
+        }
+
+        void messageReceived(String text) {
+            if (!seen) {
+                seen = true;
+                firstMessage.record(System.nanoTime() - start);
+                greeted.countDown();
+            }
+        }
+
+        void disconnected() {
+            if (!seen) {
+                seen = true;
+                greeted.countDown();
+            }
+        }
+    }
+
+    // Times every test message a client receives
+    private static class Receiver extends Reader {
+        Receiver(AsyncChatClient client) {
+            super(client);
+        }
+
+        void messageReceived(String text) {
+            if (!measuring || !text.startsWith(MARKER)) {
+                return;
+            }
+            int space = text.indexOf(' ', MARKER.length());
+            long sentAt = Long.parseLong(text.substring(MARKER.length(), space < 0 ? text.length() : space));
+            latency.record(System.nanoTime() - sentAt);
+            delivered.increment();
+        }
+
+        void disconnected() {
+            if (measuring) {
+                disconnects.increment();
+            }
+        }
+    }
+}
@@ -0,0 +1,557 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * This class serves group chat clients without a thread per client
+ * It is used by GroupChatServer when started with --nio
+ *
+ * One or more acceptor threads (the first on the caller's thread) hand
+ * each new SocketChannel to one of N reactor threads, round robin. They
+ * do nothing else, the reactor sets the connection up, so a crowd of
+ * clients reconnecting at once is taken off the backlog as fast as it comes
+ * Each reactor thread owns a Selector and does all reads, line framing
+ * and writes for its clients, so thousands of clients need only N threads
+ *
+ * The protocol is the same as the threaded server: the first line is the
+ * username, every later line is broadcast as "username: message"
+ * Binary clients (see ChatFrame) are framed here too, straight from the read buffer
+ *
+ * Writes to a busy client are coalesced: if it was flushed less than the
+ * server's flush window ago, the next write waits out the window (or until
+ * the byte budget is queued) so one gathering write carries the whole burst
+ *
+ * Read buffers are borrowed from the BufferPool when bytes arrive and given
+ * back as soon as every complete line or frame in them is handled, so only
+ * connections in the middle of a message hold one
+ */
+public class GroupChatReactor implements Closeable {
+    // Lines longer than this are not chat, the client gets disconnected
+    private static final int MAX_LINE_BYTES = 64 * 1024;
+
+    // Read buffer borrowed for a connection, grown when a message needs more
+    private static final int READ_BUFFER_BYTES = 8192;
+
+    // Most queued lines handed to one gathering write
+    static final int MAX_GATHER = 64;
+
+    private final GroupChatServer server;
+    private final ServerSocketChannel[] listeners;
+    private final int acceptorCount;
+    private final Reactor[] reactors;
+
+    // listeners come from GroupChatServer.listen, acceptors take turns on them
+    public GroupChatReactor(GroupChatServer server, ServerSocketChannel[] listeners, int acceptorCount,
+            int reactorCount) throws IOException {
+        this.server = server;
+        this.listeners = listeners;
+        this.acceptorCount = Math.max(1, acceptorCount);
+
+        this.reactors = new Reactor[Math.max(1, reactorCount)];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor();
+            Thread thread = new Thread(reactors[i], "reactor-" + i);
+            thread.start();
+        }
+    }
+
+    // Stop accepting, acceptLoop() returns
+    public void close() throws IOException {
+        GroupChatServer.closeAll(listeners);
+    }
+
+    // Accept client connections and spread them over the reactors
+    // Runs acceptor 0 here and the others on threads of their own
+    public void acceptLoop() throws IOException {
+        for (int i = 1; i < acceptorCount; i++) {
+            int acceptor = i;
+            Thread thread = new Thread(() -> {
+                try {
+                    accept(acceptor);
+                } catch (IOException e) {
+                    if (!server.isStopping()) {
+                        ChatLog.error("Acceptor error: " + e.getMessage());
+                    }
+                }
+            }, "acceptor-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        accept(0);
+    }
+
+    // Acceptors start the round robin at different reactors
+    private void accept(int acceptor) throws IOException {
+        ServerSocketChannel listener = listeners[acceptor % listeners.length];
+        int next = acceptor % reactors.length;
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = listener.accept();
+            } catch (ClosedChannelException e) {
+                return; // Shutting down
+            }
+            NioConnection connection = new NioConnection(channel, reactors[next]);
+            next = (next + 1) % reactors.length;
+            server.clients.add(connection);
+            ChatMetrics.accepts.increment();
+            server.rateLimit(connection);
+            connection.reactor.register(connection);
+        }
+    }
+
+    // The next complete line from the buffer's position, without its "\n" or "\r\n",
+    // moving the position past it; null if no complete line is there yet
+    static String nextLine(ByteBuffer buffer) {
+        int lineStart = buffer.position();
+        for (int i = lineStart; i < buffer.limit(); i++) {
+            if (buffer.get(i) == '\n') {
+                int end = i;
+                if (end > lineStart && buffer.get(end - 1) == '\r') {
+                    end--;
+                }
+                byte[] bytes = new byte[end - lineStart];
+                buffer.get(lineStart, bytes);
+                buffer.position(i + 1);
+                return new String(bytes, ChatConnection.CHARSET);
+            }
+        }
+        return null;
+    }
+
+    // One selector thread and the clients registered with it
+    private class Reactor implements Runnable {
+        private final Selector selector;
+
+        // Work handed over from other threads, done on the next loop
+        private final Queue<NioConnection> newConnections = new ConcurrentLinkedQueue<>();
+        private final Queue<NioConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+        // Connections holding writes back for their flush window, reactor thread only
+        // The window is the same for all, so this is in deadline order
+        private final ArrayDeque<NioConnection> lingering = new ArrayDeque<>();
+
+        // Connections not read from until their rate limit allows it, reactor thread only
+        private final PriorityQueue<NioConnection> throttled =
+                new PriorityQueue<>(Comparator.comparingLong(connection -> connection.throttleUntil));
+
+        Reactor() throws IOException {
+            selector = Selector.open();
+        }
+
+        void register(NioConnection connection) {
+            newConnections.add(connection);
+            selector.wakeup();
+        }
+
+        void scheduleWrite(NioConnection connection) {
+            pendingWrites.add(connection);
+            selector.wakeup();
+        }
+
+        // The reactor thread starts here
+        public void run() {
+            while (true) {
+                try {
+                    NioConnection connection = lingering.peek();
+                    NioConnection waiting = throttled.peek();
+                    if (connection == null && waiting == null) {
+                        selector.select();
+                    } else {
+                        // Sleep until the first flush window or throttle ends, rounded up to a millisecond
+                        long until = Math.min(connection == null ? Long.MAX_VALUE : connection.lingerUntil,
+                                waiting == null ? Long.MAX_VALUE : waiting.throttleUntil);
+                        long wait = until - System.nanoTime();
+                        if (wait > 0) {
+                            selector.select((wait + 999_999) / 1_000_000);
+                        } else {
+                            selector.selectNow();
+                        }
+                    }
+
+                    while ((connection = newConnections.poll()) != null) {
+                        connection.setUp(selector);
+                    }
+                    while ((connection = pendingWrites.poll()) != null) {
+                        connection.flush(false);
+                    }
+                    long now = System.nanoTime();
+                    while ((connection = lingering.peek()) != null && connection.lingerUntil <= now) {
+                        lingering.poll();
+                        connection.lingering = false;
+                        connection.flush(true);
+                    }
+                    while ((connection = throttled.peek()) != null && connection.throttleUntil <= now) {
+                        throttled.poll();
+                        try {
+                            connection.resume();
+                        } catch (RuntimeException e) {
+                            ChatLog.error("Error handling client, disconnecting", e);
+                            connection.disconnect();
+                        }
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        connection = (NioConnection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush(true);
+                            }
+                        } catch (CancelledKeyException e) {
+                            // Closed by another thread while we were on it
+                        } catch (RuntimeException e) {
+                            // A bug or a peer we did not expect, only its connection goes
+                            ChatLog.error("Error handling client, disconnecting", e);
+                            connection.disconnect();
+                        }
+                    }
+                } catch (IOException e) {
+                    ChatLog.error("Reactor error: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // A client served by a reactor thread
+    private class NioConnection extends ChatConnection {
+        private final SocketChannel channel;
+        private final Reactor reactor;
+        private SelectionKey key;
+
+        // Bytes read but not yet split into lines or frames, kept in write mode
+        // Borrowed from the BufferPool, null while there are none
+        private ByteBuffer readBuffer;
+
+        // Set once the first bytes showed whether this is a binary client
+        private boolean protocolKnown;
+
+        // Lines taken off the outbound queue for one gathering write,
+        // batch[batchStart..batchEnd) are not fully written yet
+        private final ByteBuffer[] batch = new ByteBuffer[MAX_GATHER];
+        private int batchStart;
+        private int batchEnd;
+
+        private final AtomicBoolean writeScheduled = new AtomicBoolean();
+        private boolean outputEnded;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        // Write coalescing: when the last flush happened, and whether (and until
+        // when) this connection is waiting out a flush window
+        private long lastFlush;
+        private long lingerUntil;
+        private volatile boolean lingering;
+
+        // Rate limiting: whether reading is stopped, and until when
+        private boolean throttled;
+        private long throttleUntil;
+
+        NioConnection(SocketChannel channel, Reactor reactor) {
+            super(server.queueCapacity, server.slowPolicy);
+            this.channel = channel;
+            this.reactor = reactor;
+            this.lastFlush = System.nanoTime() - server.flushWindowNanos;
+        }
+
+        // Called on the reactor thread for a connection an acceptor handed over
+        void setUp(Selector selector) {
+            try {
+                InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+                ChatLog.info("New client connected from " +
+                    remote.getAddress().getHostAddress() + ":" + remote.getPort());
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                // Clients that do not answer pings are only checked on by TCP
+                channel.socket().setKeepAlive(true);
+                key = channel.register(selector, SelectionKey.OP_READ, this);
+            } catch (IOException e) {
+                // Gone before it was set up, or closed by the server already
+                close();
+                return;
+            }
+            // Lines broadcast before registration are still waiting
+            flush(true);
+        }
+
+        // Called on the reactor thread when the channel is readable
+        void read() {
+            if (readBuffer == null) {
+                readBuffer = BufferPool.acquire(READ_BUFFER_BYTES);
+            }
+            int count;
+            try {
+                count = channel.read(readBuffer);
+            } catch (IOException e) {
+                ChatLog.warn("Error handling client: " + e.getMessage());
+                count = -1;
+            }
+            if (count < 0) {
+                disconnect();
+                return;
+            }
+            ChatMetrics.inboundBytes.add(count);
+            lastRead = System.nanoTime();
+            process();
+        }
+
+        // Hand what is in the read buffer to the server, up to a throttle
+        private void process() {
+            if (readBuffer == null) {
+                return;
+            }
+            readBuffer.flip();
+
+            // A binary client starts with the ChatFrame preamble, a line client with its username
+            if (!protocolKnown && readBuffer.hasRemaining()) {
+                if (readBuffer.get(readBuffer.position()) == 0) {
+                    if (readBuffer.remaining() < ChatFrame.PREAMBLE_LENGTH) {
+                        readBuffer.compact();
+                        return;
+                    }
+                    int version = ChatFrame.preambleVersion(readBuffer);
+                    if (version < 1) {
+                        ChatLog.warn("Bad protocol preamble, disconnecting");
+                        disconnect();
+                        return;
+                    }
+                    binary = true;
+                    version = Math.min(version, server.maxProtocolVersion());
+                    server.protocolAgreed(this, version);
+                    send(ByteBuffer.wrap(ChatFrame.preamble((byte) version)));
+                    readBuffer.position(readBuffer.position() + ChatFrame.PREAMBLE_LENGTH);
+                }
+                protocolKnown = true;
+            }
+
+            int needed;
+            try {
+                needed = binary ? readFrames() : readLines();
+            } catch (ProtocolException e) {
+                ChatLog.warn("Error handling client: " + e.getMessage());
+                disconnect();
+                return;
+            }
+            if (closed.get()) {
+                return;
+            }
+            readBuffer.compact();
+
+            // A partial line or frame does not fit, grow the buffer up to the limit
+            if (needed > readBuffer.capacity()) {
+                if (needed > MAX_LINE_BYTES && !binary) {
+                    ChatLog.warn("Client line too long, disconnecting");
+                    disconnect();
+                    return;
+                }
+                ByteBuffer bigger = BufferPool.acquire(needed);
+                readBuffer.flip();
+                bigger.put(readBuffer);
+                BufferPool.release(readBuffer);
+                readBuffer = bigger;
+            }
+
+            // Nothing left over, an idle connection keeps no buffer
+            if (readBuffer.position() == 0) {
+                BufferPool.release(readBuffer);
+                readBuffer = null;
+            }
+        }
+
+        // Called on the reactor thread from read(), while a line or frame is handled
+        // Stops reading; the rest of the read buffer waits for resume()
+        protected void throttle(long nanos) {
+            throttleUntil = Math.max(throttleUntil, System.nanoTime() + nanos);
+            if (!throttled) {
+                throttled = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                reactor.throttled.add(this);
+            }
+        }
+
+        // Called on the reactor thread when the throttle is over
+        void resume() {
+            throttled = false;
+            if (closed.get()) {
+                return;
+            }
+            try {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            } catch (CancelledKeyException e) {
+                return; // Closed by another thread
+            }
+            process();
+        }
+
+        // What flush leaves OP_READ as
+        private int readInterest() {
+            return throttled ? 0 : SelectionKey.OP_READ;
+        }
+
+        // Hand every complete line to the server, returns the buffer size
+        // the unfinished line at the end needs, 0 if it still fits
+        private int readLines() {
+            String line;
+            while ((line = nextLine(readBuffer)) != null) {
+                server.lineReceived(this, line);
+                if (closed.get() || throttled) {
+                    return 0;
+                }
+            }
+            return readBuffer.remaining() == readBuffer.capacity() ? readBuffer.capacity() * 2 : 0;
+        }
+
+        // Hand every complete frame to the server, parsed in place in the read buffer,
+        // returns the buffer size the unfinished frame at the end needs
+        private int readFrames() throws ProtocolException {
+            while (true) {
+                int size = ChatFrame.frameSize(readBuffer);
+                if (size < 0 || readBuffer.remaining() < size) {
+                    return size;
+                }
+                server.frameReceived(this, readBuffer.slice(readBuffer.position(), size));
+                readBuffer.position(readBuffer.position() + size);
+                if (closed.get() || throttled) {
+                    return 0;
+                }
+            }
+        }
+
+        // May be called from any thread, the reactor does the actual write
+        // A lingering connection is flushed at the end of its window anyway,
+        // so it only needs waking once a full byte budget is queued
+        protected void wakeWriter() {
+            if (closed.get() || (lingering && getQueuedBytes() < server.flushBytes)) {
+                return;
+            }
+            if (writeScheduled.compareAndSet(false, true)) {
+                reactor.scheduleWrite(this);
+            }
+        }
+
+        // Called on the reactor thread, writes as much as the socket takes
+        // Unless forced, a busy connection with less than the byte budget
+        // queued starts (or stays in) a flush window instead of writing now
+        void flush(boolean force) {
+            if (closed.get()) {
+                // close() schedules this, so the buffer goes back on the reactor thread
+                releaseReadBuffer();
+                return;
+            }
+            if (key == null) {
+                // Not registered yet, registration flushes what is queued
+                return;
+            }
+            writeScheduled.set(false);
+            long now = System.nanoTime();
+            if (!force && batchStart == batchEnd && getQueuedBytes() < server.flushBytes) {
+                if (lingering) {
+                    return;
+                }
+                if (now - lastFlush < server.flushWindowNanos) {
+                    lingering = true;
+                    lingerUntil = now + server.flushWindowNanos;
+                    reactor.lingering.add(this);
+                    return;
+                }
+            }
+            int messages = 0;
+            long bytes = 0;
+            try {
+                // Lines are taken off the queue before writing, so a dropped
+                // line is never one that is half way onto the socket
+                while (true) {
+                    if (batchStart == batchEnd) {
+                        batchStart = 0;
+                        batchEnd = 0;
+                        ByteBuffer[] entry;
+                        while (batchEnd + MAX_ENTRY_BUFFERS <= MAX_GATHER && (entry = pollOutbound()) != null) {
+                            for (ByteBuffer buffer : entry) {
+                                batch[batchEnd++] = buffer;
+                            }
+                            messages++;
+                        }
+                        if (batchEnd == 0) {
+                            break;
+                        }
+                    }
+
+                    // One write call for everything queued, not one per line
+                    bytes += channel.write(batch, batchStart, batchEnd - batchStart);
+                    while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+                        batch[batchStart++] = null;
+                    }
+                    if (batchStart < batchEnd) {
+                        // Socket send buffer is full, wait for OP_WRITE
+                        key.interestOps(readInterest() | SelectionKey.OP_WRITE);
+                        break;
+                    }
+                }
+                if (batchStart == batchEnd) {
+                    key.interestOps(readInterest());
+                    // Shutting down and all sent: the client reads end of stream
+                    if (outputEnding && outbound.isEmpty() && !outputEnded) {
+                        outputEnded = true;
+                        channel.shutdownOutput();
+                    }
+                }
+            } catch (IOException e) {
+                ChatLog.warn("Error writing to client: " + e.getMessage());
+                disconnect();
+            } catch (CancelledKeyException e) {
+                // Closed by another thread while we were writing
+            }
+            if (bytes > 0) {
+                lastFlush = now;
+                ChatMetrics.outboundMessages.add(messages);
+                ChatMetrics.outboundBytes.add(bytes);
+                ChatMetrics.flushMessages.record(messages);
+                ChatMetrics.flushBytes.record(bytes);
+            }
+        }
+
+        private void disconnect() {
+            close();
+        }
+
+        // Reactor thread only, the one thread that uses the read buffer
+        private void releaseReadBuffer() {
+            if (readBuffer != null) {
+                BufferPool.release(readBuffer);
+                readBuffer = null;
+            }
+        }
+
+        public boolean isClosed() {
+            return closed.get();
+        }
+
+        // May be called from any thread, e.g. by a broadcaster dropping a slow client
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                if (key != null) {
+                    key.cancel();
+                }
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    ChatLog.warn("Error closing client socket: " + e.getMessage());
+                }
+                server.clientLeft(this);
+                reactor.scheduleWrite(this);
+            }
+        }
+    }
+}
@@ -1,25 +1,163 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /* 
  * This class does all of the group chat server's job
  * It has a list of all connected clients
- * It has a thread-safe list to store all client handlers
+ * It has a concurrent set to store all client handlers
  * It has a main server thread that listens for client connections
  * It has a client handler thread that handles individual client connections
  * It has a method to broadcast a message to all connected clients
  * It has a method to send a message to this specific client
-
+ *
+ * Clients can be served three ways, picked on the command line:
+ * one thread per client (the default, ClientHandler below),
+ * one virtual thread per client (--virtual, needs Java 21) or
+ * a few selector threads shared by all clients (--nio, see GroupChatReactor)
+ *
+ * Clients talk in rooms: everybody starts in the lobby and can /join
+ * another room, /leave it for the lobby again, or list the /rooms
+ * A message only goes to the members of its sender's room, except
+ * /msg <user>, which goes to that one user: usernames are unique and kept
+ * in an index, so a private message is one map lookup, not a scan
+ *
+ * With --log every room's messages are kept on disk (see MessageLog),
+ * a client entering a room is sent its last few messages and can ask for
+ * more with /history, or for everything after an offset with /since
+ *
+ * A client that has sent nothing for a while gets a heartbeat ping, and
+ * one that stays silent for --idle seconds is dropped like any client
+ * that left. One TimerWheel keeps track of every connection for this
+ *
+ * A client may ask for a resumable session (see ChatSession). When its
+ * connection drops the user stays in the room for --resume seconds, and a
+ * client coming back with /resume gets only the messages it missed
+ *
+ * Several servers can run as one cluster (--cluster, see ClusterRelay):
+ * chat messages are passed to the other nodes, which send them on to
+ * their own clients in the room. Join and leave notices and /rooms stay
+ * local to each node
+ *
+ * With --compress, messages of at least that many bytes are deflated once
+ * per broadcast for the binary clients that can take it (see Compression)
+ *
+ * Shutting down (Ctrl-C, kill, or /shutdown on the console) stops
+ * accepting, tells every client, lets every writer send what is queued
+ * and end its output, and closes whatever is left after --drain seconds
+ *
+ * --rate and --rate-bytes limit how much each client may send (see
+ * TokenBucket), --rate-policy says what happens to a client over the limit
+ *
+ * Broadcasting only puts the line on each client's bounded outbound queue
+ * (see ChatConnection), --queue sets its size and --slow decides what
+ * happens when a client lets its queue fill up
+ *
+ * What the server itself has to say goes through ChatLog, off the client
+ * threads: --log-level sets how much and --log-file sends it to a file
  */
 public class GroupChatServer implements Runnable {
-    // Thread-safe list to store all client handlers
-    private List<ClientHandler> clients = Collections.synchronizedList(new ArrayList<>());
+    // Concurrent set of all client connections, in either mode
+    // Adding, removing and broadcasting never wait on each other
+    Set<ChatConnection> clients = ConcurrentHashMap.newKeySet();
+
+    // Username to its client, for clients that have one. A name is taken
+    // with putIfAbsent, so two clients can never get the same one
+    final ConcurrentHashMap<String, ChatConnection> users = new ConcurrentHashMap<>();
+
+    // Room name to its members, a room exists while it has members
+    // compute() only locks the room it changes, so joins and leaves never
+    // hold up broadcasts, which just walk one room's member set
+    static final String LOBBY = "lobby";
+    private static final int MAX_ROOM_NAME = 32;
+
+    // Even in multi byte characters a name this long fits the 255 bytes
+    // ChatFrame has for a sender, and the cluster links' limit
+    private static final int MAX_USERNAME = 32;
+    final ConcurrentHashMap<String, Set<ChatConnection>> rooms = new ConcurrentHashMap<>();
+
+    // Room history, one MessageLog per room in its own directory under logDir
+    // No logDir means nothing is kept
+    private static final int LOG_SEGMENT_BYTES = 8 << 20;
+    private static final int MAX_HISTORY = 1000;
+    Path logDir;
+    int historySize = 20;
+    long logRetainBytes = 256L << 20;
+    long logRetainMillis = 7L * 24 * 60 * 60 * 1000;
+    private final ConcurrentHashMap<String, MessageLog> logs = new ConcurrentHashMap<>();
+
+    // The server's own log (ChatLog), not the rooms' history: --log-file
+    // rolls over to this many older files
+    private static final int LOG_FILES_KEPT = 5;
     private BufferedReader fromUserReader;
     private PrintWriter toSockWriter; 
-    private ServerSocket serverSocket;
+
+    // Outbound queue size per client and what to do when it is full
+    int queueCapacity = 1024;
+    SlowConsumerPolicy slowPolicy = SlowConsumerPolicy.DROP_OLDEST;
+
+    // Inbound limits per client, 0 for none; bursts may be two seconds' worth
+    long rateMessages;
+    long rateBytes;
+    RateLimitPolicy ratePolicy = RateLimitPolicy.THROTTLE;
+
+    // Write coalescing: a busy client's writes wait up to flushWindowNanos
+    // for more messages, or until flushBytes are queued, then go out as one
+    long flushWindowNanos = 1_000_000;
+    int flushBytes = 16 * 1024;
+
+    // Heartbeats, for clients that answer pings: one silent for idleNanos / 3
+    // is pinged, one silent for idleNanos is dropped. Other clients only get
+    // TCP keepalive. The same timers expire dropped sessions
+    long idleNanos = TimeUnit.SECONDS.toNanos(90);
+    TimerWheel timers;
+
+    // Resumable sessions by id (see ChatSession). A dropped session waits
+    // resumeNanos for its client to come back, 0 means no sessions, and
+    // keeps up to resumeBuffer unacknowledged messages meanwhile
+    final ConcurrentHashMap<String, ChatSession> sessions = new ConcurrentHashMap<>();
+    long resumeNanos = TimeUnit.SECONDS.toNanos(60);
+    int resumeBuffer = 256;
+
+    // Messages from this many bytes on are deflated for clients that agree, -1 for never
+    int compressFrom = -1;
+
+    // Links to the other nodes of the cluster, null when running alone
+    ClusterRelay cluster;
+
+    // Shutdown: set once it starts, then clients get drainMillis to finish
+    private final AtomicBoolean stopping = new AtomicBoolean();
+    long drainMillis = 10_000;
+    private volatile Closeable acceptor;
+
+    // Accepting: threads taking connections off the listen backlog, and how
+    // long that backlog may get before the kernel refuses new clients
+    int acceptors = 1;
+    int backlog = 4096;
+
+    // Runs client reader/writer tasks in virtual mode, null means plain threads
+    private ExecutorService clientExecutor;
+
+    // Broadcasts are encoded into direct buffers, since a SocketChannel writes them
+    // in every mode; off for servers that never write to sockets (benchmarks)
+    boolean directBuffers;
 
     // Constructor for the main server thread
     public GroupChatServer(BufferedReader reader, PrintWriter writer) {
@@ -28,63 +166,892 @@ public class GroupChatServer implements Runnable {
     }
 
     // Inner class to handle individual client connections
-    private class ClientHandler implements Runnable {
+    private class ClientHandler extends ChatConnection implements Runnable {
         private Socket clientSocket;
-        private BufferedReader reader;
-        private PrintWriter writer;
-        private String username;
+        private SocketChannel channel;
+        private BufferedInputStream in;
+
+        // Writer thread draining the outbound queue, interrupted on close
+        private volatile Thread writerThread;
+        private volatile boolean closed;
 
         // Constructor for the client handler thread   
         // It creates a new client handler thread for a new client connection
-        public ClientHandler(Socket socket) throws IOException {
-            this.clientSocket = socket;
-            this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            this.writer = new PrintWriter(socket.getOutputStream(), true);
+        // The channel stays in blocking mode; reads go through the socket's
+        // stream on the reader thread, writes through the channel on the writer
+        // Runs on an acceptor thread, so everything else waits for run()
+        public ClientHandler(SocketChannel channel) {
+            super(queueCapacity, slowPolicy);
+            this.channel = channel;
+            this.clientSocket = channel.socket();
+        }
+
+        private void openInput() throws IOException {
+            // Clients that do not answer pings are only checked on by TCP
+            clientSocket.setKeepAlive(true);
+            ChatLog.info("New client connected from " +
+                clientSocket.getInetAddress().getHostAddress() + ":" +
+                clientSocket.getPort());
+            // Count bytes as they come off the socket, before any buffering
+            this.in = new BufferedInputStream(new FilterInputStream(clientSocket.getInputStream()) {
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int count = super.read(b, off, len);
+                    if (count > 0) {
+                        ChatMetrics.inboundBytes.add(count);
+                        lastRead = System.nanoTime();
+                    }
+                    return count;
+                }
+            });
         }
 
         // The client handler thread starts here
         public void run() {
+            // Socket writes happen on a second thread so broadcasters never wait on them
+            startTask(this::writeLoop);
             try {
-                // First message from client should be their username
-                username = reader.readLine();
-                if (username == null) {
-                    System.out.println("Client disconnected before sending username");
-                    return; // Client disconnected before sending username
+                openInput();
+                // A binary client starts with the ChatFrame preamble, a line client with its username
+                ByteArrayOutputStream reply = new ByteArrayOutputStream();
+                int version = ChatFrame.acceptPreamble(in, reply, maxProtocolVersion());
+                if (version > 0) {
+                    binary = true;
+                    protocolAgreed(this, version);
+                    send(ByteBuffer.wrap(reply.toByteArray()));
+                    readFrames();
+                } else {
+                    readLines();
+                }
+            } catch (IOException e) {
+                // Not an error when the server closed it, e.g. for idling
+                if (!closed) {
+                    ChatLog.warn("Error handling client: " + e.getMessage());
+                }
+            } catch (RuntimeException e) {
+                // A bug or a peer we did not expect, only this client goes
+                ChatLog.error("Error handling client, disconnecting", e);
+            }
+            clientLeft(this);
+            close();
+        }
+
+        // Line protocol: first line is the username, then one message per line
+        private void readLines() throws IOException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+            while (true) {
+                String line = reader.readLine();
+                if (line == null) {
+                    break; // Client disconnected
                 }
+                lineReceived(this, line);
+            }
+            if (username == null) {
+                ChatLog.info("Client disconnected before sending username");
+            }
+        }
 
-                // Broadcast that new user has joined
-                broadcastMessage("Server", username + " has joined the chat");
+        // Binary protocol: a HELLO frame with the username, then MESSAGE frames
+        private void readFrames() throws IOException {
+            ChatFrame.Reader frames = new ChatFrame.Reader(in);
+            ByteBuffer frame;
+            while ((frame = frames.next()) != null) {
+                frameReceived(this, frame);
+            }
+        }
 
-                // Keep reading messages from this client
-                while (true) {
-                    String message = reader.readLine();
-                    if (message == null) {
-                        break; // Client disconnected
+        // The client writer thread starts here
+        // It takes everything queued so far and sends it with one gathering
+        // write, straight from the shared message buffers. If the last write
+        // was within the flush window the client is busy, so it also waits
+        // out the window (or the byte budget) for more to send with it;
+        // a quiet client's message goes out at once
+        private void writeLoop() {
+            writerThread = Thread.currentThread();
+            long lastFlush = System.nanoTime() - flushWindowNanos;
+            ByteBuffer[] batch = new ByteBuffer[GroupChatReactor.MAX_GATHER];
+            try {
+                while (!closed) {
+                    // Shutting down and all sent: the client reads end of stream
+                    if (outputEnding && outbound.isEmpty()) {
+                        clientSocket.shutdownOutput();
+                        return;
+                    }
+                    ByteBuffer[] entry = takeOutbound();
+                    long now = System.nanoTime();
+                    long deadline = now - lastFlush < flushWindowNanos ? now + flushWindowNanos : now;
+                    int messages = 0;
+                    int buffers = 0;
+                    int bytes = 0;
+                    while (entry != null) {
+                        for (ByteBuffer buffer : entry) {
+                            batch[buffers++] = buffer;
+                            bytes += buffer.remaining();
+                        }
+                        messages++;
+                        if (bytes >= flushBytes || buffers + MAX_ENTRY_BUFFERS > batch.length) {
+                            break;
+                        }
+                        entry = pollOutbound();
+                        if (entry == null && deadline > now) {
+                            long wait = deadline - System.nanoTime();
+                            if (wait > 0) {
+                                entry = pollOutbound(wait, TimeUnit.NANOSECONDS);
+                            }
+                        }
+                    }
+                    // A blocking channel may still write less than asked
+                    long written = 0;
+                    while (written < bytes) {
+                        written += channel.write(batch, 0, buffers);
                     }
-                    broadcastMessage(username, message);
+                    Arrays.fill(batch, 0, buffers, null);
+                    lastFlush = System.nanoTime();
+                    ChatMetrics.outboundMessages.add(messages);
+                    ChatMetrics.outboundBytes.add(bytes);
+                    ChatMetrics.flushMessages.record(messages);
+                    ChatMetrics.flushBytes.record(bytes);
                 }
+            } catch (InterruptedException e) {
+                // Closed while waiting for something to send
             } catch (IOException e) {
-                System.out.println("Error handling client: " + e.getMessage());
-            } 
-            clients.remove(this);
-            broadcastMessage("Server", username + " has left the chat");
+                if (!closed) {
+                    ChatLog.warn("Error writing to client: " + e.getMessage());
+                    close();
+                }
+            }
+        }
+
+        protected void wakeWriter() {
+            // The writer thread is already waiting on the queue
+        }
+
+        // This is the reading thread, so it simply reads nothing while it sleeps
+        protected void throttle(long nanos) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        public void close() {
+            closed = true;
+            Thread writer = writerThread;
+            if (writer != null && writer != Thread.currentThread()) {
+                writer.interrupt();
+            }
             try {
                 clientSocket.close();
             } catch (Exception e) {
-                System.out.println("Error closing client socket: " + e.getMessage());
+                ChatLog.warn("Error closing client socket: " + e.getMessage());
+            }
+        }
+    }
+
+    // A line from a line protocol client, in either mode
+    // The first line is the username, every later one is broadcast
+    void lineReceived(ChatConnection client, String line) {
+        if (line.equals("/pong")) {
+            heartbeats(client);
+            return; // Heartbeat answer, it already counted as activity
+        }
+        if (stopping.get()) {
+            return;
+        }
+        if (line.startsWith("/ack ")) {
+            ack(client, line.substring(5));
+            return;
+        }
+        // The byte limit counts what came over the wire, not chars
+        if (!admit(client, client.byteBucket == null ? 0 : ChatConnection.encodedLength(line) + 1)) {
+            return;
+        }
+        ChatMetrics.inboundMessages.increment();
+        if (client.username == null) {
+            if (line.startsWith("/resume ")) {
+                resume(client, line.substring(8));
+            } else {
+                login(client, line);
+            }
+        } else if (line.startsWith("/")) {
+            command(client, line);
+        } else {
+            chat(client, new ChatMessage(client.username, line, directBuffers));
+        }
+    }
+
+    // A frame from a binary protocol client, in either mode
+    // The payload goes out again as bytes, it is never turned into a String
+    void frameReceived(ChatConnection client, ByteBuffer frame) {
+        byte type = ChatFrame.type(frame);
+        if (type == ChatFrame.PONG) {
+            heartbeats(client);
+            return; // Heartbeat answer, it already counted as activity
+        }
+        if (stopping.get()) {
+            return;
+        }
+        if (type == ChatFrame.ACK) {
+            ack(client, ChatFrame.text(ChatFrame.payload(frame)));
+            return;
+        }
+        if (!admit(client, frame.remaining())) {
+            return;
+        }
+        ChatMetrics.inboundMessages.increment();
+        if (client.username == null) {
+            if (type == ChatFrame.HELLO) {
+                login(client, ChatFrame.text(ChatFrame.payload(frame)));
+            } else if (type == ChatFrame.SESSION) {
+                resume(client, ChatFrame.text(ChatFrame.payload(frame)));
+            }
+        } else if (type == ChatFrame.SESSION) {
+            startSession(client);
+        } else if (type == ChatFrame.MESSAGE) {
+            ByteBuffer payload = ChatFrame.payload(frame);
+            if (payload.hasRemaining() && payload.get(payload.position()) == '/') {
+                command(client, ChatFrame.text(payload));
+            } else {
+                chat(client, new ChatMessage(client.username, payload, directBuffers));
+            }
+        }
+    }
+
+    // Version 2 is only worth agreeing on when there is something to deflate
+    int maxProtocolVersion() {
+        return compressFrom >= 0 ? ChatFrame.VERSION : 1;
+    }
+
+    // Called once a binary client's version is agreed, in either mode
+    void protocolAgreed(ChatConnection client, int version) {
+        if (version >= 2) {
+            client.compressFrom = compressFrom;
+        }
+    }
+
+    // Give a newly accepted client its rate limits, in either mode
+    void rateLimit(ChatConnection client) {
+        if (rateMessages > 0) {
+            client.messageBucket = new TokenBucket(rateMessages, 2 * rateMessages);
+        }
+        if (rateBytes > 0) {
+            client.byteBucket = new TokenBucket(rateBytes, 2 * rateBytes);
+        }
+    }
+
+    // Check a message against the client's rate limits, on its reading thread
+    // Returns false if the message is not to be handled
+    private boolean admit(ChatConnection client, int bytes) {
+        TokenBucket messages = client.messageBucket;
+        TokenBucket bytesIn = client.byteBucket;
+        if (messages == null && bytesIn == null) {
+            return true;
+        }
+        long now = System.nanoTime();
+        long wait = Math.max(messages == null ? 0 : messages.delay(1, now),
+                bytesIn == null ? 0 : bytesIn.delay(bytes, now));
+        if (wait > 0) {
+            ChatMetrics.rateLimited.increment();
+            if (ratePolicy == RateLimitPolicy.DISCONNECT) {
+                ChatLog.warn("Disconnecting " + client.getUsername() + ", sending too fast");
+                ChatMetrics.rateDisconnects.increment();
+                client.evict();
+                return false;
+            }
+            if (ratePolicy == RateLimitPolicy.DROP) {
+                ChatMetrics.rateDropped.increment();
+                if (now - client.lastRateNotice > TimeUnit.SECONDS.toNanos(1)) {
+                    client.lastRateNotice = now;
+                    reply(client, "You are sending too fast, messages are being dropped");
+                }
+                return false;
+            }
+        }
+        if (messages != null) {
+            messages.take(1, now);
+        }
+        if (bytesIn != null) {
+            bytesIn.take(bytes, now);
+        }
+        if (wait > 0) {
+            // THROTTLE: handle this one, then read nothing until the debt is paid
+            long debt = Math.max(messages == null ? 0 : messages.delay(0, now),
+                    bytesIn == null ? 0 : bytesIn.delay(0, now));
+            ChatMetrics.throttledNanos.add(debt);
+            client.throttle(debt);
+        }
+        return true;
+    }
+
+    // A pong from a client, in either mode. The first one, sent unasked,
+    // says it answers pings: only then is its idle check started, a client
+    // that never answers would otherwise be dropped for being quiet
+    private void heartbeats(ChatConnection client) {
+        if (!client.heartbeats && timers != null && idleNanos > 0) {
+            client.heartbeats = true;
+            timers.schedule(() -> checkIdle(client), idleNanos / 3, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // Runs on the timer wheel thread: ping a quiet client, drop a silent one
+    // Closing it sends it through clientLeft like any other disconnect
+    private void checkIdle(ChatConnection client) {
+        if (client.isClosed()) {
+            return;
+        }
+        long pingAfter = idleNanos / 3;
+        long silent = System.nanoTime() - client.lastRead;
+        if (silent >= idleNanos) {
+            ChatLog.info("Client " + (client.getUsername() != null ? client.getUsername() : "")
+                    + " timed out, disconnecting");
+            ChatMetrics.idleTimeouts.increment();
+            client.evict();
+            return;
+        }
+        long next = pingAfter - silent;
+        if (silent >= pingAfter) {
+            client.sendPing();
+            next = Math.min(pingAfter, idleNanos - silent);
+        }
+        timers.schedule(() -> checkIdle(client), next, TimeUnit.NANOSECONDS);
+    }
+
+    // A client's first line or HELLO, in either mode
+    // A name that is taken is refused and the client may send another one
+    private void login(ChatConnection client, String name) {
+        if (name.isEmpty() || name.length() > MAX_USERNAME || name.startsWith("/")
+                || name.chars().anyMatch(c -> c <= ' ') || name.equals("Server")) {
+            reply(client, "Usernames cannot be empty, start with / or have spaces, and have at most "
+                    + MAX_USERNAME + " characters, type another one");
+            return;
+        }
+        if (users.putIfAbsent(name, client) != null) {
+            reply(client, "Username " + name + " is taken, type another one");
+            return;
+        }
+        client.username = name;
+        // Closed while logging in, clientLeft may have missed the name
+        if (client.isClosed()) {
+            users.remove(name, client);
+            return;
+        }
+        clientJoined(client);
+    }
+
+    // Called once a client has sent its username, in either mode
+    void clientJoined(ChatConnection client) {
+        replayTail(client, LOBBY, historySize);
+        joinRoom(client, LOBBY);
+        broadcast(LOBBY, new ChatMessage("Server", client.getUsername() + " has joined the chat", directBuffers));
+    }
+
+    // Called once a client's connection is gone, in either mode
+    void clientLeft(ChatConnection client) {
+        if (!clients.remove(client)) {
+            return; // Already gone
+        }
+        ChatMetrics.disconnects.increment();
+        ChatSession session = client.session;
+        if (session != null) {
+            if (session.member() != client) {
+                return; // A resumed connection took its place
+            }
+            // Dropped, not gone: the user stays until the session expires
+            // Not after evict(), which ended the session already
+            if (!stopping.get() && session.detach(client)) {
+                timers.schedule(() -> expire(session, client), resumeNanos, TimeUnit.NANOSECONDS);
+                return;
+            }
+            sessions.remove(session.id, session);
+        }
+        leave(client);
+    }
+
+    // The user is gone for good: free the name and tell the room
+    private void leave(ChatConnection client) {
+        if (client.getUsername() != null) {
+            users.remove(client.getUsername(), client);
+        }
+        String room = client.room;
+        leaveRoom(client);
+        if (client.getUsername() != null && room != null && !stopping.get()) {
+            broadcast(room, new ChatMessage("Server", client.getUsername() + " has left the chat", directBuffers));
+        }
+    }
+
+    // A line starting with "/" from a client, in either protocol
+    void command(ChatConnection client, String line) {
+        String[] words = line.trim().split("\\s+", 2);
+        switch (words[0]) {
+            case "/join":
+                if (words.length < 2 || words[1].length() > MAX_ROOM_NAME || words[1].contains(" ")) {
+                    reply(client, "Usage: /join <room>, room names have no spaces and at most "
+                            + MAX_ROOM_NAME + " characters");
+                } else {
+                    moveTo(client, words[1]);
+                }
+                break;
+            case "/leave":
+                if (LOBBY.equals(client.room)) {
+                    reply(client, "You are in the " + LOBBY + " already");
+                } else {
+                    moveTo(client, LOBBY);
+                }
+                break;
+            case "/history":
+                if (logDir == null) {
+                    reply(client, "This server keeps no history");
+                    break;
+                }
+                try {
+                    int count = words.length < 2 ? historySize : Integer.parseInt(words[1]);
+                    replayTail(client, client.room, Math.min(Math.max(count, 1), MAX_HISTORY));
+                } catch (NumberFormatException e) {
+                    reply(client, "Usage: /history [number of messages]");
+                }
+                break;
+            case "/since":
+                if (logDir == null) {
+                    reply(client, "This server keeps no history");
+                    break;
+                }
+                try {
+                    replay(client, client.room, Long.parseLong(words[1]), MAX_HISTORY);
+                } catch (RuntimeException e) {
+                    reply(client, "Usage: /since <offset>");
+                }
+                break;
+            case "/msg":
+                String[] to = words.length < 2 ? new String[0] : words[1].split("\\s+", 2);
+                if (to.length < 2) {
+                    reply(client, "Usage: /msg <user> <message>");
+                } else {
+                    directMessage(client, to[0], to[1]);
+                }
+                break;
+            case "/session":
+                startSession(client);
+                break;
+            case "/quit":
+                // Leaving on purpose, so nothing is kept for a resume
+                ChatSession session = client.session;
+                if (session != null) {
+                    session.end();
+                }
+                client.close();
+                break;
+            case "/rooms":
+                StringBuilder list = new StringBuilder("Rooms:");
+                for (Map.Entry<String, Set<ChatConnection>> entry : rooms.entrySet()) {
+                    list.append(' ').append(entry.getKey()).append(" (").append(entry.getValue().size()).append(')');
+                }
+                reply(client, list.toString());
+                break;
+            default:
+                reply(client, "Unknown command " + words[0]
+                        + ", try /join <room>, /leave, /rooms, /msg <user>, /history, /since or /quit");
+        }
+    }
+
+    // A logged in client asks for a resumable session, in either protocol
+    // Its answer is the session id, or no id when the server keeps none
+    private void startSession(ChatConnection client) {
+        ChatSession session = client.session;
+        if (session == null && resumeNanos > 0) {
+            session = new ChatSession(client, resumeBuffer);
+            sessions.put(session.id, session);
+            client.session = session;
+            // Closed meanwhile, clientLeft may have missed the session
+            if (client.isClosed()) {
+                sessions.remove(session.id, session);
+                return;
+            }
+        }
+        client.send(sessionReply(client, session == null ? "" : session.id));
+    }
+
+    private ByteBuffer sessionReply(ChatConnection client, String id) {
+        if (client.binary) {
+            return ChatFrame.encode(ChatFrame.SESSION, "", id);
+        }
+        return ChatConnection.encode(id.isEmpty() ? "/session" : "/session " + id, false);
+    }
+
+    // "/ack <seq>" from a session client: it has everything up to seq
+    private void ack(ChatConnection client, String seq) {
+        ChatSession session = client.session;
+        if (session != null) {
+            try {
+                session.ack(Long.parseLong(seq.trim()));
+            } catch (NumberFormatException e) {
+                // Not from a client of ours, nothing to trim
+            }
+        }
+    }
+
+    // "/resume <id> <seq>" instead of a username: a client that lost its
+    // connection takes its session over. It gets the session's room and
+    // name without anyone seeing it leave or join, then every kept message
+    // after seq. An unknown or expired session gets the no-session answer,
+    // the client then logs in as a new user. A known one that cannot be
+    // resumed ends on the spot, so that login can have the name back
+    private void resume(ChatConnection client, String request) {
+        String[] words = request.trim().split("\\s+");
+        ChatSession session = sessions.get(words[0]);
+        long acked = -1;
+        try {
+            acked = words.length == 2 ? Long.parseLong(words[1]) : -1;
+        } catch (NumberFormatException e) {
+            // Refused below
+        }
+        ChatConnection old = null;
+        long lost = 0;
+        if (session != null && acked >= 0) {
+            synchronized (session) {
+                // A session client is always in a room, the lobby at least
+                if (!session.isEnded() && acked <= session.lastSeq() && session.member().room != null) {
+                    old = session.member();
+                    client.username = old.username;
+                    client.room = old.room;
+                    client.session = session;
+                    users.replace(old.username, old, client);
+                    // Both connections are in the room until the session has
+                    // moved over, it numbers each message only once
+                    String room = client.room;
+                    rooms.compute(room, (name, members) -> {
+                        if (members == null) {
+                            members = ConcurrentHashMap.newKeySet();
+                        }
+                        members.add(client);
+                        return members;
+                    });
+                    client.send(sessionReply(client, session.id));
+                    lost = session.attach(client, acked);
+                    ChatConnection replaced = old;
+                    rooms.computeIfPresent(room, (name, members) -> {
+                        members.remove(replaced);
+                        return members.isEmpty() ? null : members;
+                    });
+                }
+            }
+        }
+        if (old == null) {
+            ChatMetrics.sessionResumeMisses.increment();
+            if (session != null) {
+                endRefused(session);
+            }
+            client.send(sessionReply(client, ""));
+            return;
+        }
+        ChatMetrics.sessionResumes.increment();
+        ChatLog.info("Resumed the session of " + client.username);
+        // Still open if the client noticed the drop before the server did
+        old.close();
+        if (lost > 0) {
+            reply(client, "You missed " + lost + " messages while you were away, they were no longer kept");
+        }
+    }
+
+    // Only its client has the id, and it is about to log in again with the
+    // same name: the user leaves now instead of holding the name until expiry
+    private void endRefused(ChatSession session) {
+        ChatConnection member = session.member();
+        if (session.endRefused()) {
+            sessions.remove(session.id, session);
+            leave(member);
+        } else {
+            // Still attached, the client noticed the drop before the server
+            // did. Left here and not from its reader, which may be too late
+            clientLeft(member);
+            member.close();
+        }
+    }
+
+    // Runs on the timer wheel thread: a dropped session nobody resumed is over
+    private void expire(ChatSession session, ChatConnection client) {
+        if (!session.expire(client)) {
+            return; // Resumed meanwhile
+        }
+        sessions.remove(session.id, session);
+        ChatMetrics.sessionsExpired.increment();
+        leave(client);
+    }
+
+    // A private message, queued for the one user it is for the same way a
+    // broadcast queues it for each member; the sender gets a copy too
+    // Only users on this node can be reached, and it is not kept in any log
+    private void directMessage(ChatConnection client, String username, String text) {
+        ChatConnection target = users.get(username);
+        if (target == null) {
+            ChatMetrics.directMisses.increment();
+            reply(client, "There is no user " + username + " here");
+            return;
+        }
+        ChatMessage message = new ChatMessage(client.getUsername() + " -> " + username, text, directBuffers);
+        target.send(message);
+        if (target != client) {
+            client.send(message);
+        }
+        ChatMetrics.directMessages.increment();
+    }
+
+    // Send a message from the server to one client only
+    private void reply(ChatConnection client, String message) {
+        client.send(new ChatMessage("Server", message, directBuffers));
+    }
+
+    // Take the client out of its room and into another, telling both rooms
+    private void moveTo(ChatConnection client, String room) {
+        String old = client.room;
+        if (room.equals(old)) {
+            reply(client, "You are in " + room + " already");
+            return;
+        }
+        leaveRoom(client);
+        if (old != null) {
+            broadcast(old, new ChatMessage("Server", client.getUsername() + " has left " + old, directBuffers));
+        }
+        replayTail(client, room, historySize);
+        joinRoom(client, room);
+        broadcast(room, new ChatMessage("Server", client.getUsername() + " has joined " + room, directBuffers));
+    }
+
+    private void joinRoom(ChatConnection client, String room) {
+        rooms.compute(room, (name, members) -> {
+            if (members == null) {
+                members = ConcurrentHashMap.newKeySet();
+            }
+            members.add(client);
+            return members;
+        });
+        client.room = room;
+        // Closed while joining, clientLeft may have missed this room
+        if (client.isClosed()) {
+            leaveRoom(client);
+        }
+    }
+
+    private void leaveRoom(ChatConnection client) {
+        String room = client.room;
+        if (room == null) {
+            return;
+        }
+        client.room = null;
+        rooms.computeIfPresent(room, (name, members) -> {
+            members.remove(client);
+            return members.isEmpty() ? null : members;
+        });
+    }
+
+    // A chat message from a client, kept in its room's log and sent to the room
+    // and to the other nodes of the cluster
+    private void chat(ChatConnection client, ChatMessage message) {
+        String room = client.room;
+        if (room == null) {
+            return;
+        }
+        deliver(room, message);
+        if (cluster != null) {
+            cluster.publish(room, message);
+        }
+    }
+
+    // A chat message from another node, room null for a console message to everybody
+    void relayReceived(String room, ChatMessage message) {
+        if (room == null) {
+            broadcast(clients, message);
+        } else {
+            deliver(room, message);
+        }
+    }
+
+    private void deliver(String room, ChatMessage message) {
+        if (ChatLog.enabled(LogLevel.DEBUG)) {
+            ChatLog.debug("Message from " + message.getSender() + " in " + room);
+        }
+        MessageLog log = logFor(room);
+        if (log != null) {
+            try {
+                log.append(message.line());
+            } catch (IOException e) {
+                ChatLog.error("Error logging message: " + e.getMessage());
+            }
+        }
+        broadcast(room, message);
+    }
+
+    // The room's log, opened on first use; null if nothing is kept
+    private MessageLog logFor(String room) {
+        if (logDir == null || room == null) {
+            return null;
+        }
+        try {
+            return logs.computeIfAbsent(room, name -> {
+                try {
+                    return new MessageLog(logDir.resolve(fileNameOf(name)), LOG_SEGMENT_BYTES,
+                            logRetainBytes, logRetainMillis);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            ChatLog.error("Error opening log of " + room + ": " + e.getCause().getMessage());
+            return null;
+        }
+    }
+
+    // Room names can hold anything but spaces, keep them safe as directory names
+    private static String fileNameOf(String room) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : room.getBytes(StandardCharsets.UTF_8)) {
+            if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '-' || b == '_') {
+                name.append((char) b);
+            } else {
+                name.append('%').append(String.format("%02X", b & 0xff));
             }
         }
+        return name.toString();
     }
 
-    // Crucial to use this instead of "toSockWriter.println()". BroadcastMessage sends to all clients. 
-    private void broadcastMessage(String sender, String message) {
-        synchronized (clients) {
-            for (ClientHandler client : clients) {
-                if (client.username != null) { // Only send to clients that have set their username
-                    client.writer.println(sender + ": " + message);
-                    client.writer.flush();
+    // Send the last count messages of a room to one client
+    private void replayTail(ChatConnection client, String room, int count) {
+        MessageLog log = logFor(room);
+        if (log != null) {
+            replay(client, room, log.nextOffset() - count, count);
+        }
+    }
+
+    // Send up to max messages of a room from the given offset on to one client
+    // Line clients get slices of the mapped log file, queued like any broadcast
+    private void replay(ChatConnection client, String room, long from, int max) {
+        MessageLog log = logFor(room);
+        if (log == null) {
+            return;
+        }
+        from = Math.max(from, log.firstOffset());
+        long to = Math.min(log.nextOffset(), from + max);
+        if (from >= to) {
+            return;
+        }
+        reply(client, "Messages " + from + " to " + (to - 1) + " of " + room + ":");
+        List<ByteBuffer> slices = log.read(from, (int) (to - from));
+        for (ByteBuffer lines : slices) {
+            if (client.binary) {
+                sendHistoryFrames(client, lines);
+            } else {
+                client.send(lines);
+            }
+        }
+    }
+
+    // Binary clients get the same lines in HISTORY frames, split at line ends to fit a frame
+    private void sendHistoryFrames(ChatConnection client, ByteBuffer lines) {
+        ByteBuffer noSender = ByteBuffer.allocate(0);
+        int maxPayload = ChatFrame.MAX_FRAME_LENGTH - ChatFrame.HEADER_LENGTH;
+        while (lines.hasRemaining()) {
+            int end = lines.limit();
+            if (lines.remaining() > maxPayload) {
+                end = lines.position() + maxPayload;
+                for (int i = end - 1; i > lines.position(); i--) {
+                    if (lines.get(i) == '\n') {
+                        end = i + 1;
+                        break;
+                    }
                 }
             }
+            ByteBuffer chunk = lines.slice(lines.position(), end - lines.position());
+            client.send(ChatFrame.encode(ChatFrame.HISTORY, noSender, chunk, directBuffers));
+            lines.position(end);
+        }
+    }
+
+    // Crucial to use this instead of "toSockWriter.println()". BroadcastMessage sends to all clients in every room. 
+    void broadcastMessage(String sender, String message) {
+        ChatMessage chatMessage = new ChatMessage(sender, message, directBuffers);
+        broadcast(clients, chatMessage);
+        if (cluster != null) {
+            cluster.publish(null, chatMessage);
+        }
+    }
+
+    // Send to the members of one room only
+    void broadcast(String room, ChatMessage message) {
+        Set<ChatConnection> members = room == null ? null : rooms.get(room);
+        if (members != null) {
+            broadcast(members, message);
+        }
+    }
+
+    // The message is encoded once per protocol and every client gets a read-only view of the same bytes
+    void broadcast(Collection<ChatConnection> members, ChatMessage message) {
+        long start = System.nanoTime();
+        int recipients = 0;
+        for (ChatConnection client : members) {
+            if (client.getUsername() != null) { // Only send to clients that have set their username
+                client.send(message);
+                recipients++;
+            }
+        }
+        ChatMetrics.broadcastRecipients.add(recipients);
+        ChatMetrics.broadcastNanos.record(System.nanoTime() - start);
+    }
+
+    boolean isStopping() {
+        return stopping.get();
+    }
+
+    // Stop accepting, tell every client, let each writer send what is queued
+    // and end its output, then close what is left at the deadline
+    // Runs once, from the shutdown hook
+    void shutdown() {
+        if (!stopping.compareAndSet(false, true)) {
+            return;
+        }
+        ChatLog.info("Shutting down, draining " + clients.size() + " clients");
+        try {
+            if (acceptor != null) {
+                acceptor.close();
+            }
+        } catch (IOException e) {
+            ChatLog.error("Error closing server socket: " + e.getMessage());
+        }
+
+        ChatMessage notice = new ChatMessage("Server", "The server is shutting down, reconnect in a moment",
+                directBuffers);
+        for (ChatConnection client : clients) {
+            if (client.getUsername() != null) {
+                client.send(notice);
+            }
+            client.finishOutput();
+        }
+
+        // Clients close their end once they have read everything
+        long deadline = System.currentTimeMillis() + drainMillis;
+        while (!clients.isEmpty() && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        int left = clients.size();
+        for (ChatConnection client : clients) {
+            client.close();
+        }
+        ChatLog.info("Shut down" + (left > 0 ? ", closed " + left + " clients at the deadline" : ""));
+        ChatLog.flush();
+    }
+
+    // Run a client task on the virtual thread executor, or on a new thread
+    private void startTask(Runnable task) {
+        if (clientExecutor != null) {
+            clientExecutor.execute(task);
+        } else {
+            new Thread(task).start();
         }
     }
 
@@ -97,51 +1064,320 @@ public class GroupChatServer implements Runnable {
                 if (message == null) {
                     break; // EOF received
                 }
+                if (message.equals("/stats")) {
+                    printStats();
+                    continue;
+                }
+                if (message.equals("/shutdown")) {
+                    System.exit(0); // Runs the shutdown hook
+                }
                 broadcastMessage("Server", message);
             }
         } catch (IOException e) {
-            System.out.println("Error in server thread: " + e.getMessage());
+            ChatLog.error("Error in server thread: " + e.getMessage());
         }
     }
 
+    // Typing /stats on the server console prints all metrics
+    private void printStats() {
+        for (String line : ChatMetrics.render(clients).split("\n")) {
+            if (!line.startsWith("#")) {
+                ChatLog.display(line);
+            }
+        }
+    }
+
+    private static void usage() {
+        System.out.println("Usage: java GroupChatServer <port> [--nio [reactor threads] | --virtual]");
+        System.out.println("           [--queue <lines per client>] [--slow drop|disconnect|block]");
+        System.out.println("           [--metrics-port <port>] [--flush-window <microseconds>] [--flush-bytes <bytes>]");
+        System.out.println("           [--log <directory> [--history <messages>] [--retain-mb <MB per room>]");
+        System.out.println("           [--retain-hours <hours>]] [--idle <seconds, 0 for no heartbeats>]");
+        System.out.println("           [--cluster <peer port> [--peers <host:port>,...] [--node <name>]");
+        System.out.println("           [--cluster-bind <address>] [--cluster-secret-file <file>]]");
+        System.out.println("           [--compress <smallest message to deflate, bytes>] [--drain <seconds>]");
+        System.out.println("           [--rate <messages/s>] [--rate-bytes <bytes/s>] [--rate-policy throttle|drop|disconnect]");
+        System.out.println("           [--pool-debug] [--acceptors <threads>] [--backlog <connections>]");
+        System.out.println("           [--log-level debug|info|warn|error] [--log-file <path> [--log-file-mb <MB>]]");
+        System.out.println("           [--resume <seconds, 0 for no sessions>] [--resume-buffer <messages>]");
+        System.exit(1);
+    }
+
     // Main method to start the server
     public static void main(String[] args) {
-        if (args.length != 1) {
-            System.out.println("Usage: java GroupChatServer <port>");
+        int port = -1;
+        boolean nio = false;
+        boolean virtual = false;
+        int reactors = Runtime.getRuntime().availableProcessors();
+        int metricsPort = -1;
+        int clusterPort = -1;
+        List<InetSocketAddress> peers = new ArrayList<>();
+        String nodeId = null;
+        String clusterBind = null;
+        Path clusterSecret = null;
+        Path logFile = null;
+        long logFileBytes = 64L << 20;
+
+        // Set up server console input/output
+        BufferedReader fromUserReader = new BufferedReader(new InputStreamReader(System.in));
+        PrintWriter toSockWriter = new PrintWriter(System.out, true);
+        GroupChatServer server = new GroupChatServer(fromUserReader, toSockWriter);
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--nio")) {
+                    nio = true;
+                    if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                        reactors = Integer.parseInt(args[++i]);
+                    }
+                } else if (args[i].equals("--virtual")) {
+                    virtual = true;
+                } else if (args[i].equals("--queue") && i + 1 < args.length) {
+                    server.queueCapacity = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--slow") && i + 1 < args.length) {
+                    server.slowPolicy = SlowConsumerPolicy.fromName(args[++i]);
+                } else if (args[i].equals("--metrics-port") && i + 1 < args.length) {
+                    metricsPort = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--flush-window") && i + 1 < args.length) {
+                    server.flushWindowNanos = Long.parseLong(args[++i]) * 1000;
+                } else if (args[i].equals("--flush-bytes") && i + 1 < args.length) {
+                    server.flushBytes = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--log") && i + 1 < args.length) {
+                    server.logDir = Paths.get(args[++i]);
+                } else if (args[i].equals("--history") && i + 1 < args.length) {
+                    server.historySize = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--retain-mb") && i + 1 < args.length) {
+                    server.logRetainBytes = Long.parseLong(args[++i]) << 20;
+                } else if (args[i].equals("--idle") && i + 1 < args.length) {
+                    server.idleNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(args[++i]));
+                } else if (args[i].equals("--retain-hours") && i + 1 < args.length) {
+                    server.logRetainMillis = Long.parseLong(args[++i]) * 60 * 60 * 1000;
+                } else if (args[i].equals("--rate") && i + 1 < args.length) {
+                    server.rateMessages = Long.parseLong(args[++i]);
+                } else if (args[i].equals("--rate-bytes") && i + 1 < args.length) {
+                    server.rateBytes = Long.parseLong(args[++i]);
+                } else if (args[i].equals("--rate-policy") && i + 1 < args.length) {
+                    server.ratePolicy = RateLimitPolicy.fromName(args[++i]);
+                } else if (args[i].equals("--pool-debug")) {
+                    BufferPool.setDebug(true);
+                } else if (args[i].equals("--acceptors") && i + 1 < args.length) {
+                    server.acceptors = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--backlog") && i + 1 < args.length) {
+                    server.backlog = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--log-level") && i + 1 < args.length) {
+                    ChatLog.setLevel(LogLevel.fromName(args[++i]));
+                } else if (args[i].equals("--log-file") && i + 1 < args.length) {
+                    logFile = Paths.get(args[++i]);
+                } else if (args[i].equals("--log-file-mb") && i + 1 < args.length) {
+                    logFileBytes = Long.parseLong(args[++i]) << 20;
+                } else if (args[i].equals("--resume") && i + 1 < args.length) {
+                    server.resumeNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(args[++i]));
+                } else if (args[i].equals("--resume-buffer") && i + 1 < args.length) {
+                    server.resumeBuffer = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--drain") && i + 1 < args.length) {
+                    server.drainMillis = Long.parseLong(args[++i]) * 1000;
+                } else if (args[i].equals("--compress") && i + 1 < args.length) {
+                    server.compressFrom = Integer.parseInt(args[++i]);
+                    if (server.compressFrom < 0) {
+                        usage();
+                    }
+                } else if (args[i].equals("--cluster") && i + 1 < args.length) {
+                    clusterPort = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--peers") && i + 1 < args.length) {
+                    for (String peer : args[++i].split(",")) {
+                        int colon = peer.lastIndexOf(':');
+                        peers.add(new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+                    }
+                } else if (args[i].equals("--node") && i + 1 < args.length) {
+                    nodeId = args[++i];
+                } else if (args[i].equals("--cluster-bind") && i + 1 < args.length) {
+                    clusterBind = args[++i];
+                } else if (args[i].equals("--cluster-secret-file") && i + 1 < args.length) {
+                    clusterSecret = Paths.get(args[++i]);
+                } else if (port < 0) {
+                    port = Integer.parseInt(args[i]);
+                } else {
+                    usage();
+                }
+            }
+        } catch (IllegalArgumentException | StringIndexOutOfBoundsException e) {
+            usage();
+        }
+        if (port < 0 || server.queueCapacity < 1 || server.flushWindowNanos < 0 || server.flushBytes < 1
+                || server.historySize < 0 || server.idleNanos < 0 || server.drainMillis < 0
+                || server.resumeNanos < 0 || server.resumeBuffer < 1
+                || server.rateMessages < 0 || server.rateMessages > TokenBucket.MAX_RATE / 2
+                || server.rateBytes < 0 || server.rateBytes > TokenBucket.MAX_RATE / 2
+                || server.acceptors < 1 || server.backlog < 1 || logFileBytes < 1 || server.historySize > MAX_HISTORY || (nio && virtual)
+                || (clusterPort < 0 && (!peers.isEmpty() || nodeId != null || clusterBind != null
+                        || clusterSecret != null))) {
+            usage();
+        }
+        // A reactor thread waiting for room in a queue only it drains would hang
+        if (nio && server.slowPolicy == SlowConsumerPolicy.BLOCK) {
+            System.out.println("--slow block cannot be used with --nio");
             System.exit(1);
         }
 
-        int port = Integer.parseInt(args[0]);
-        ServerSocket serverSocket = null;
-
         try {
-            // Create server socket
-            serverSocket = new ServerSocket(port);
-            System.out.println("Server started on port " + port);
+            if (logFile != null) {
+                ChatLog.toFile(logFile, logFileBytes, LOG_FILES_KEPT);
+            }
+            if (metricsPort >= 0) {
+                ChatMetrics.serve(metricsPort, server.clients);
+            }
+            if (clusterPort >= 0) {
+                // Node ids only need to differ within the cluster, host and port do that
+                if (nodeId == null) {
+                    nodeId = InetAddress.getLocalHost().getHostName() + ":" + clusterPort;
+                }
+                // Anyone who can reach the cluster port can speak as any user,
+                // so beyond loopback the peers have to prove they know the secret
+                InetAddress bind = clusterBind == null ? InetAddress.getLoopbackAddress()
+                        : InetAddress.getByName(clusterBind);
+                byte[] secret = null;
+                if (clusterSecret != null) {
+                    secret = Files.readString(clusterSecret).trim().getBytes(StandardCharsets.UTF_8);
+                    if (secret.length == 0) {
+                        System.out.println(clusterSecret + " is empty, it should hold the cluster secret");
+                        System.exit(1);
+                    }
+                }
+                if (!bind.isLoopbackAddress() && secret == null) {
+                    System.out.println("--cluster-bind " + clusterBind + " needs --cluster-secret-file");
+                    System.exit(1);
+                }
+                server.cluster = new ClusterRelay(server, nodeId, bind, clusterPort, secret, peers);
+            }
+            if (server.idleNanos > 0 || server.resumeNanos > 0) {
+                // 100 ms ticks, 512 slots make one turn about 51 seconds
+                server.timers = new TimerWheel("timers", 100, TimeUnit.MILLISECONDS, 512);
+            }
+
+            Runtime.getRuntime().addShutdownHook(new Thread(server::shutdown, "shutdown"));
+
+            // Create server sockets, blocking: acceptors wait in accept()
+            ServerSocketChannel[] listeners = listen(port, server.acceptors, server.backlog);
+            String accepting = server.acceptors == 1 ? ""
+                    : ", " + server.acceptors + " acceptors on " + listeners.length + " listening sockets";
 
-            // Set up server console input/output
-            BufferedReader fromUserReader = new BufferedReader(new InputStreamReader(System.in));
-            PrintWriter toSockWriter = new PrintWriter(System.out, true);
+            // Selector mode: a few reactor threads instead of one thread per client
+            server.directBuffers = true;
+            if (nio) {
+                GroupChatReactor reactor = new GroupChatReactor(server, listeners, server.acceptors, reactors);
+                server.acceptor = reactor;
+                ChatLog.info("Server started on port " + port + " with " + reactors + " reactor threads"
+                        + accepting);
+                new Thread(server).start();
+
+                // Accept loop runs on this thread and hands clients to the reactors
+                reactor.acceptLoop();
+                return;
+            }
+
+            server.acceptor = () -> closeAll(listeners);
+            ChatLog.info("Server started on port " + port + accepting);
 
             // Create and start server thread for console input
-            GroupChatServer server = new GroupChatServer(fromUserReader, toSockWriter);
             Thread serverThread = new Thread(server);
             serverThread.start();
 
-            // Accept client connections
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("New client connected from " + 
-                    clientSocket.getInetAddress().getHostAddress() + ":" + 
-                    clientSocket.getPort());
+            // Virtual mode: the accept loops and every ClientHandler run on virtual threads
+            if (virtual) {
+                if (!VirtualThreads.isSupported()) {
+                    ChatLog.warn("Virtual threads need Java 21, using a platform thread pool");
+                }
+                server.clientExecutor = VirtualThreads.newExecutor();
+            }
+            for (int i = 1; i < server.acceptors; i++) {
+                server.startAcceptor(listeners[i % listeners.length]);
+            }
+            if (!virtual) {
+                server.acceptLoop(listeners[0]);
+                return;
+            }
+            server.clientExecutor.submit(() -> {
+                server.acceptLoop(listeners[0]);
+                return null;
+            }).get();
+        } catch (IOException | InterruptedException e) {
+            if (!server.isStopping()) {
+                ChatLog.error("Server error: " + e.getMessage());
+            }
+        } catch (ExecutionException e) {
+            if (!server.isStopping()) {
+                ChatLog.error("Server error: " + e.getCause().getMessage());
+            }
+        }
+    }
 
-                // Create and start new client handler thread
-                ClientHandler clientHandler = server.new ClientHandler(clientSocket);
-                server.clients.add(clientHandler);
-                new Thread(clientHandler).start();
+    // The listening sockets for the port. With more than one acceptor each
+    // gets a socket of its own if the OS has SO_REUSEPORT (Linux, BSD), and
+    // the kernel spreads new connections over them; otherwise all share one
+    static ServerSocketChannel[] listen(int port, int acceptors, int backlog) throws IOException {
+        ServerSocketChannel first = ServerSocketChannel.open();
+        boolean reusePort = acceptors > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        ServerSocketChannel[] listeners = new ServerSocketChannel[reusePort ? acceptors : 1];
+        listeners[0] = first;
+        try {
+            for (int i = 0; i < listeners.length; i++) {
+                if (listeners[i] == null) {
+                    listeners[i] = ServerSocketChannel.open();
+                }
+                if (reusePort) {
+                    listeners[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                listeners[i].bind(new InetSocketAddress(port), backlog);
             }
         } catch (IOException e) {
-            System.out.println("Server error: " + e.getMessage());
+            closeAll(listeners);
+            throw e;
+        }
+        return listeners;
+    }
+
+    static void closeAll(ServerSocketChannel[] listeners) throws IOException {
+        IOException failure = null;
+        for (ServerSocketChannel listener : listeners) {
+            try {
+                if (listener != null) {
+                    listener.close();
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // An accept loop on a thread (or virtual thread) of its own
+    private void startAcceptor(ServerSocketChannel listener) {
+        startTask(() -> {
+            try {
+                acceptLoop(listener);
+            } catch (IOException e) {
+                if (!isStopping()) {
+                    ChatLog.error("Acceptor error: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    // Accept client connections, each ClientHandler gets its own thread
+    // or, in virtual mode, its own task on the virtual thread executor
+    // Nothing here waits on the client, that all happens on its thread
+    private void acceptLoop(ServerSocketChannel serverSocket) throws IOException {
+        while (true) {
+            SocketChannel channel = serverSocket.accept();
+
+            // Create and start new client handler thread
+            ClientHandler clientHandler = new ClientHandler(channel);
+            clients.add(clientHandler);
+            ChatMetrics.accepts.increment();
+            rateLimit(clientHandler);
+            startTask(clientHandler);
         }
     }
 }
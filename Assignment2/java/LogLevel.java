@@ -0,0 +1,32 @@
+/*
+ * How much the programs log (see ChatLog), each level includes the ones below it
+ */
+public enum LogLevel {
+    // Everything, including a line per message
+    DEBUG,
+
+    // Connections coming and going, server start and stop
+    INFO,
+
+    // Clients misbehaving or failing, the server carries on
+    WARN,
+
+    // Something of the server's own failed
+    ERROR;
+
+    // Parse the --log-level command line value: debug, info, warn or error
+    public static LogLevel fromName(String name) {
+        switch (name) {
+            case "debug":
+                return DEBUG;
+            case "info":
+                return INFO;
+            case "warn":
+                return WARN;
+            case "error":
+                return ERROR;
+            default:
+                throw new IllegalArgumentException("unknown log level: " + name);
+        }
+    }
+}
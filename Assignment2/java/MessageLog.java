@@ -0,0 +1,227 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/*
+ * This class is the on-disk history of one chat room
+ * Every chat message gets the next offset (0, 1, 2, ...) and its line
+ * ("sender: text\n", exactly as line clients receive it) is appended to
+ * the current segment
+ *
+ * A segment is two memory-mapped files named after the first offset in it:
+ *   <offset>.log    the lines back to back, nothing in between
+ *   <offset>.index  one int per message, where its line ends in the .log
+ * Because the .log holds nothing but lines, any run of messages is one
+ * slice of the mapped file, which the server queues for a client like any
+ * other shared buffer: history is never copied into the Java heap
+ *
+ * A message counts once its index entry is written, so after a crash the
+ * last line may be missing but never half there. A full segment is closed
+ * and a new one started, and the oldest segments are deleted once the room
+ * holds more than retainBytes or their newest message is older than retainMillis
+ */
+public class MessageLog {
+    // Lines are at least this long on average or the index fills first
+    private static final int MIN_AVERAGE_LINE = 32;
+
+    // A segment's .log file, anything else in the directory is left alone
+    private static final Pattern SEGMENT_NAME = Pattern.compile("(\\d{1,19})\\.log");
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long retainBytes;
+    private final long retainMillis;
+
+    // First offset of each segment to the segment, oldest first
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private Segment active;
+
+    // Offset the next message will get
+    private volatile long nextOffset;
+
+    // The mapped files of one segment
+    private static final class Segment {
+        final long base;
+        final Path dataPath;
+        final Path indexPath;
+        final MappedByteBuffer data;
+        final MappedByteBuffer index;
+
+        // Messages and bytes in it, count is what readers go by
+        volatile int count;
+        int size;
+        volatile long lastAppend;
+
+        Segment(Path dir, long base, int segmentBytes) throws IOException {
+            this.base = base;
+            this.dataPath = dir.resolve(String.format("%020d.log", base));
+            this.indexPath = dir.resolve(String.format("%020d.index", base));
+            this.data = map(dataPath, Math.max(segmentBytes, (int) Math.min(Integer.MAX_VALUE, sizeOf(dataPath))));
+            this.index = map(indexPath, data.capacity() / MIN_AVERAGE_LINE * 4);
+
+            // Entries are end positions, so the first 0 is where the index stops
+            while (count < index.capacity() / 4 && index.getInt(count * 4) > size) {
+                size = index.getInt(count * 4);
+                count++;
+            }
+            this.lastAppend = Files.exists(dataPath) ? Files.getLastModifiedTime(dataPath).toMillis() : 0;
+        }
+
+        private static long sizeOf(Path path) throws IOException {
+            return Files.exists(path) ? Files.size(path) : 0;
+        }
+
+        private static MappedByteBuffer map(Path path, int bytes) throws IOException {
+            try (FileChannel channel = FileChannel.open(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            }
+        }
+
+        int start(int message) {
+            return message == 0 ? 0 : index.getInt((message - 1) * 4);
+        }
+
+        boolean fits(int bytes) {
+            return count < index.capacity() / 4 && size + bytes <= data.capacity();
+        }
+
+        void append(ByteBuffer line) {
+            int length = line.remaining();
+            data.put(size, line, line.position(), length);
+            size += length;
+            index.putInt(count * 4, size);
+            lastAppend = System.currentTimeMillis();
+            count++;
+        }
+
+        void delete() throws IOException {
+            // Slices already queued for clients keep the mapping alive
+            Files.deleteIfExists(dataPath);
+            Files.deleteIfExists(indexPath);
+        }
+    }
+
+    public MessageLog(Path dir, int segmentBytes, long retainBytes, long retainMillis) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.segmentBytes = segmentBytes;
+        this.retainBytes = retainBytes;
+        this.retainMillis = retainMillis;
+
+        // Pick up what an earlier run left behind
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (!name.endsWith(".log")) {
+                    continue;
+                }
+                Matcher segment = SEGMENT_NAME.matcher(name);
+                long base = -1;
+                try {
+                    base = segment.matches() ? Long.parseLong(segment.group(1)) : -1;
+                } catch (NumberFormatException e) {
+                    // Too big for an offset, skipped below
+                }
+                if (base < 0) {
+                    ChatLog.warn("Skipping " + file + ", it is not a history segment");
+                    continue;
+                }
+                segments.put(base, new Segment(dir, base, segmentBytes));
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.put(0L, new Segment(dir, 0, segmentBytes));
+        }
+        active = segments.lastEntry().getValue();
+        nextOffset = active.base + active.count;
+        enforceRetention();
+    }
+
+    // Offset of the oldest message still kept
+    public long firstOffset() {
+        return segments.firstKey();
+    }
+
+    public long nextOffset() {
+        return nextOffset;
+    }
+
+    // Add a line, returns its offset, or -1 if it is bigger than a whole segment
+    public synchronized long append(ByteBuffer line) throws IOException {
+        int length = line.remaining();
+        if (length > segmentBytes) {
+            return -1;
+        }
+        if (!active.fits(length)) {
+            roll();
+        }
+        active.append(line);
+        return nextOffset++;
+    }
+
+    // Start a new segment at the next offset and drop what retention no longer keeps
+    private void roll() throws IOException {
+        active = new Segment(dir, nextOffset, segmentBytes);
+        segments.put(active.base, active);
+        enforceRetention();
+    }
+
+    private void enforceRetention() throws IOException {
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.size;
+        }
+        long oldest = System.currentTimeMillis() - retainMillis;
+        while (segments.size() > 1) {
+            Segment first = segments.firstEntry().getValue();
+            if (total <= retainBytes && first.lastAppend >= oldest) {
+                break;
+            }
+            segments.remove(first.base);
+            total -= first.size;
+            first.delete();
+        }
+    }
+
+    // Read-only slices of up to max lines from the given offset on, one slice
+    // per segment they span. Offsets before firstOffset() start there instead
+    public List<ByteBuffer> read(long from, int max) {
+        List<ByteBuffer> slices = new ArrayList<>();
+        long to = Math.min(nextOffset, from + max);
+        while (from < to) {
+            Map.Entry<Long, Segment> entry = segments.floorEntry(from);
+            if (entry == null) {
+                // Deleted by retention, carry on with what is left
+                entry = segments.firstEntry();
+                from = entry.getKey();
+                if (from >= to) {
+                    break;
+                }
+            }
+            Segment segment = entry.getValue();
+            int first = (int) (from - segment.base);
+            int last = (int) Math.min(to - segment.base, segment.count);
+            if (first >= last) {
+                break;
+            }
+            int start = segment.start(first);
+            slices.add(segment.data.slice(start, segment.start(last) - start).asReadOnlyBuffer());
+            from = segment.base + last;
+        }
+        return slices;
+    }
+
+    // The last count lines, oldest first
+    public List<ByteBuffer> tail(int count) {
+        return read(Math.max(nextOffset - count, 0), count);
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * What the server does when a client sends faster than --rate or --rate-bytes
+ */
+public enum RateLimitPolicy {
+    // Handle the message, then stop reading from the client until it is
+    // back under the limit, so TCP slows the client down
+    THROTTLE,
+
+    // Throw the message away, the client is told at most once a second
+    DROP,
+
+    // Close the client
+    DISCONNECT;
+
+    // Parse the --rate-policy command line value: throttle, drop or disconnect
+    public static RateLimitPolicy fromName(String name) {
+        switch (name) {
+            case "throttle":
+                return THROTTLE;
+            case "drop":
+                return DROP;
+            case "disconnect":
+                return DISCONNECT;
+            default:
+                throw new IllegalArgumentException("unknown rate limit policy: " + name);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * What the server does when a client's outbound queue is full,
+ * which means the client is reading slower than the chat is talking
+ */
+public enum SlowConsumerPolicy {
+    // Throw away the oldest queued line to make room for the new one
+    DROP_OLDEST,
+
+    // Close the slow client, it can reconnect when it catches up
+    DISCONNECT,
+
+    // Make the sender wait for room (the old behaviour, one slow client slows everyone)
+    BLOCK;
+
+    // Parse the --slow command line value: drop, disconnect or block
+    public static SlowConsumerPolicy fromName(String name) {
+        switch (name) {
+            case "drop":
+                return DROP_OLDEST;
+            case "disconnect":
+                return DISCONNECT;
+            case "block":
+                return BLOCK;
+            default:
+                throw new IllegalArgumentException("unknown slow consumer policy: " + name);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * This class is a hashed timer wheel: one thread runs every timeout
+ * Time is cut into ticks and the wheel has a slot per tick, going round;
+ * a timeout sits in the slot of the tick it is due in, with the number of
+ * full turns still to wait. Scheduling and cancelling are O(1) and each
+ * tick only looks at one slot, so tens of thousands of timeouts (one per
+ * client connection) cost next to nothing while they wait
+ *
+ * Timeouts fire up to one tick late, never early. Tasks run on the wheel
+ * thread and should be short; a task that needs to wait should hand the
+ * waiting to some other thread
+ */
+public class TimerWheel {
+    // A scheduled task, cancel() keeps it from running
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline; // nanos since the wheel started
+        private long rounds;
+        private Timeout next;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final long tickNanos;
+    private final Timeout[] slots;
+    private final int mask;
+    private final long startTime = System.nanoTime();
+
+    // Timeouts scheduled from other threads, put in their slots on the next tick
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+
+    // Ticks done so far, only used by the wheel thread
+    private long tick;
+
+    // slotCount is rounded up to a power of two
+    public TimerWheel(String name, long tickDuration, TimeUnit unit, int slotCount) {
+        this.tickNanos = unit.toNanos(tickDuration);
+        int size = Integer.highestOneBit(Math.max(slotCount, 2) - 1) << 1;
+        this.slots = new Timeout[size];
+        this.mask = size - 1;
+
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Run the task once, after the delay; may be called from any thread
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + unit.toNanos(delay));
+        added.add(timeout);
+        return timeout;
+    }
+
+    // The wheel thread starts here
+    private void run() {
+        while (true) {
+            // Sleep until this tick is over
+            long tickEnd = startTime + (tick + 1) * tickNanos;
+            long now;
+            while ((now = System.nanoTime()) < tickEnd) {
+                LockSupport.parkNanos(tickEnd - now);
+            }
+
+            // Put new timeouts in their slots, anything already due goes in this one
+            Timeout timeout;
+            while ((timeout = added.poll()) != null) {
+                if (timeout.cancelled) {
+                    continue;
+                }
+                long due = Math.max(timeout.deadline / tickNanos, tick);
+                timeout.rounds = (due - tick) / slots.length;
+                int slot = (int) (due & mask);
+                timeout.next = slots[slot];
+                slots[slot] = timeout;
+            }
+
+            expire((int) (tick & mask));
+            tick++;
+        }
+    }
+
+    // Run the slot's timeouts that are due this turn, keep the rest
+    private void expire(int slot) {
+        Timeout previous = null;
+        Timeout timeout = slots[slot];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.cancelled || timeout.rounds <= 0) {
+                if (previous == null) {
+                    slots[slot] = next;
+                } else {
+                    previous.next = next;
+                }
+                timeout.next = null;
+                if (!timeout.cancelled) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        ChatLog.error("Timer task failed", e);
+                    }
+                }
+            } else {
+                timeout.rounds--;
+                previous = timeout;
+            }
+            timeout = next;
+        }
+    }
+}
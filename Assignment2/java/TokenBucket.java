@@ -0,0 +1,45 @@
+/*
+ * This class is a token bucket: a client may send rate units (messages or
+ * bytes) per second on average, and up to capacity units in a burst
+ *
+ * Nothing refills it on a timer. It only keeps the time at which the
+ * bucket will be full again (the "generic cell rate algorithm" form of a
+ * token bucket): taking tokens moves that time forward, and the bucket is
+ * empty when it is capacity's worth of time ahead of now. Checking it is
+ * a little arithmetic on one long
+ *
+ * Each bucket belongs to one connection and only the thread reading that
+ * connection uses it, so it has no locks or atomics
+ */
+public final class TokenBucket {
+    // Rates above this would overflow the nanosecond arithmetic
+    public static final long MAX_RATE = 1_000_000_000L;
+
+    private final long ratePerSecond;
+    private final long capacityNanos;
+    private long fullAt = System.nanoTime();
+
+    public TokenBucket(long ratePerSecond, long capacity) {
+        if (ratePerSecond < 1 || ratePerSecond > MAX_RATE || capacity < 1) {
+            throw new IllegalArgumentException("bad token bucket " + ratePerSecond + "/s, " + capacity);
+        }
+        this.ratePerSecond = ratePerSecond;
+        this.capacityNanos = nanosFor(capacity);
+    }
+
+    private long nanosFor(long tokens) {
+        return tokens * 1_000_000_000L / ratePerSecond;
+    }
+
+    // Nanoseconds until cost tokens are there, 0 if they are there now
+    // cost 0 gives the time until a bucket in debt is out of it
+    public long delay(long cost, long now) {
+        long after = Math.max(fullAt, now) + nanosFor(cost);
+        return Math.max(0, after - now - capacityNanos);
+    }
+
+    // Take cost tokens, going into debt if there are not that many
+    public void take(long cost, long now) {
+        fullAt = Math.max(fullAt, now) + nanosFor(cost);
+    }
+}
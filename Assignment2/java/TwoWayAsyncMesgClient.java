@@ -8,6 +8,13 @@ import java.net.*;
 // Package for I/O related stuff
 import java.io.*;
 
+// Package for buffers used by the binary protocol
+import java.nio.ByteBuffer;
+
+// Packages for sending files straight from disk to the socket
+import java.nio.channels.*;
+import java.nio.file.*;
+
 
 /*
  * This class does all of two way messaging client's job
@@ -23,6 +30,12 @@ import java.io.*;
  *
  * Since a thread is being created with this class object,
  * this class declaration includes "implements Runnable"
+ *
+ * With --binary both directions use ChatFrame frames instead of lines
+ * Heartbeat pings from the server are answered here, unseen by the user
+ *
+ * Everything shown on the screen goes through ChatLog, so a thread
+ * reading the socket never waits for the console
  */
 public class TwoWayAsyncMesgClient implements Runnable
 {
@@ -32,6 +45,15 @@ public class TwoWayAsyncMesgClient implements Runnable
 	// For writing messages to the socket
 	private PrintWriter toSockWriter;
 
+	// For writing ChatFrame frames to the socket instead, in binary mode
+	private OutputStream toSockStream;
+
+	// The socket's channel, files are sent through it in binary mode
+	private SocketChannel toSockChannel;
+
+	// With --log-file, rolled over files kept besides the current one
+	private static final int LOG_FILES_KEPT = 5;
+
 	// Constructor sets the reader and writer for the child thread
 	public TwoWayAsyncMesgClient(BufferedReader reader, PrintWriter writer)
 	{
@@ -39,6 +61,14 @@ public class TwoWayAsyncMesgClient implements Runnable
 		toSockWriter = writer;
 	}
 
+	// Same, for a connection talking the binary protocol
+	public TwoWayAsyncMesgClient(BufferedReader reader, SocketChannel channel)
+	{
+		fromUserReader = reader;
+		toSockChannel = channel;
+		toSockStream = Channels.newOutputStream(channel);
+	}
+
 	// The child thread starts here
 	public void run()
 	{
@@ -51,16 +81,30 @@ public class TwoWayAsyncMesgClient implements Runnable
 
 				// If we get null, it means EOF, so quit
 				if (line == null) {
-					System.out.println("*** Client closing connection");
+					ChatLog.display("*** Client closing connection");
 					break;
 				}
 
-				// Write the line to the socket
-				toSockWriter.println(line);
+				// "/send <file> [offset]" sends a file, binary mode only
+				if (line.startsWith("/send ")) {
+					sendFile(line);
+					continue;
+				}
+
+				// Write the line to the socket, as a frame in binary mode
+				// A file being sent holds the stream between its chunks
+				if (toSockStream != null) {
+					synchronized (toSockStream) {
+						ChatFrame.write(toSockStream, ChatFrame.MESSAGE, "", line);
+					}
+				}
+				else {
+					toSockWriter.println(line);
+				}
 			}
 		}
 		catch (Exception e) {
-			System.out.println(e);
+			ChatLog.error(e.toString());
 			System.exit(1);
 		}
 
@@ -68,6 +112,51 @@ public class TwoWayAsyncMesgClient implements Runnable
 		System.exit(0);
 	}
 
+	// Send a file on a thread of its own, so chatting carries on meanwhile
+	private void sendFile(String line)
+	{
+		if (toSockChannel == null) {
+			ChatLog.display("*** Sending files needs the binary protocol (--binary)");
+			return;
+		}
+		String[] words = line.trim().split("\\s+");
+		long offset = -1;
+		try {
+			offset = words.length == 3 ? Long.parseLong(words[2]) : 0;
+		}
+		catch (NumberFormatException e) {
+			// Reported just below
+		}
+		if (words.length < 2 || words.length > 3 || offset < 0) {
+			ChatLog.display("usage: /send <file> [offset to resume from]");
+			return;
+		}
+		Path file = Paths.get(words[1]);
+		long from = offset;
+		Thread sender = new Thread(() -> {
+			try {
+				FileTransfer.send(toSockChannel, toSockStream, file, from);
+			}
+			catch (IOException e) {
+				ChatLog.display("*** Sending " + file + " failed: " + e.getMessage());
+			}
+		});
+		sender.start();
+	}
+
+	// Answer the server's heartbeat ping, called on the reading thread
+	private void sendPong() throws IOException
+	{
+		if (toSockStream != null) {
+			synchronized (toSockStream) {
+				ChatFrame.write(toSockStream, ChatFrame.PONG, "", "");
+			}
+		}
+		else {
+			toSockWriter.println("/pong");
+		}
+	}
+
 	/*
 	 * The messaging client program starts from here.
 	 * It sets up streams for reading & writing from keyboard and socket
@@ -76,49 +165,106 @@ public class TwoWayAsyncMesgClient implements Runnable
 	 */
 	public static void main(String args[])
 	{
-		// Client needs server's contact information and user name
-		if (args.length != 2) {
-			System.out.println("usage: java TwoWayAsyncMesgClient <host> <port>");
+		// Client needs server's contact information, --binary picks the frame protocol
+		// --log-level and --log-file work as for GroupChatServer
+		boolean binary = false;
+		Path logFile = null;
+		long logFileBytes = 64L << 20;
+		try {
+			for (int i = 2; i < args.length; i++) {
+				if (args[i].equals("--binary")) {
+					binary = true;
+				}
+				else if (args[i].equals("--log-level")) {
+					ChatLog.setLevel(LogLevel.fromName(args[++i]));
+				}
+				else if (args[i].equals("--log-file")) {
+					logFile = Paths.get(args[++i]);
+				}
+				else if (args[i].equals("--log-file-mb")) {
+					logFileBytes = Long.parseLong(args[++i]) << 20;
+				}
+				else {
+					throw new IllegalArgumentException(args[i]);
+				}
+			}
+		}
+		catch (RuntimeException e) {
+			args = new String[0];
+		}
+		if (args.length < 2 || logFileBytes < 1) {
+			System.out.println("usage: java TwoWayAsyncMesgClient <host> <port> [--binary]\n"
+					+ "           [--log-level debug|info|warn|error] [--log-file <path> [--log-file-mb <MB>]]");
 			System.exit(1);
 		}
 
+		// Log lines can go to a file, what is shown to the user stays on the screen
+		if (logFile != null) {
+			try {
+				ChatLog.toFile(logFile, logFileBytes, LOG_FILES_KEPT);
+			}
+			catch (IOException e) {
+				System.out.println("Cannot open the log file: " + e.getMessage());
+				System.exit(1);
+			}
+		}
+
 		// Connect to the server at the given host and port
+		// The socket comes from a channel so files can be sent with transferTo
 		Socket sock = null;
 		try {
-			sock = new Socket(args[0], Integer.parseInt(args[1]));
-			System.out.println(
+			sock = SocketChannel.open(new InetSocketAddress(args[0], Integer.parseInt(args[1]))).socket();
+			ChatLog.display(
 					"Connected to server at " + args[0] + ":" + args[1]);
 		}
 		catch(Exception e) {
-			System.out.println(e);
+			ChatLog.error(e.toString());
 			System.exit(1);
 		}
 
 		// Set up a thread to read from user and write to socket
+		InputStream fromSock = null;
+		TwoWayAsyncMesgClient childTask = null;
 		try {
-			// Prepare to write to socket with auto flush on
-			PrintWriter toSockWriter =
-					new PrintWriter(sock.getOutputStream(), true);
+			fromSock = new BufferedInputStream(sock.getInputStream());
 
 			// Prepare to read from keyboard
 			BufferedReader fromUserReader = new BufferedReader(
 					new InputStreamReader(System.in));
 
+			if (binary) {
+				// Agree on the binary protocol before anything else is sent
+				OutputStream toSockStream = sock.getOutputStream();
+				ChatFrame.sendPreamble(fromSock, toSockStream);
+				childTask = new TwoWayAsyncMesgClient(fromUserReader, sock.getChannel());
+			}
+			else {
+				// Prepare to write to socket with auto flush on
+				PrintWriter toSockWriter =
+						new PrintWriter(sock.getOutputStream(), true);
+				childTask = new TwoWayAsyncMesgClient(fromUserReader, toSockWriter);
+			}
+
+			// Tell the server this client answers its pings
+			childTask.sendPong();
+
 			// Spawn a thread to read from user and write to socket
-			Thread child = new Thread(
-					new TwoWayAsyncMesgClient(fromUserReader, toSockWriter));
+			Thread child = new Thread(childTask);
 			child.start();
 		}
 		catch(Exception e) {
-			System.out.println(e);
+			ChatLog.error(e.toString());
 			System.exit(1);
 		}
 
 		// Now read from socket and display to user
+		if (binary) {
+			readFrames(fromSock, sock.getChannel(), childTask);
+		}
 		try {
 			// Prepare to read from socket
 			BufferedReader fromSockReader = new BufferedReader(
-					new InputStreamReader(sock.getInputStream()));
+					new InputStreamReader(fromSock));
 
 			// Keep doing till server is done
 			while (true) {
@@ -128,16 +274,61 @@ public class TwoWayAsyncMesgClient implements Runnable
 				// If we get null, it means EOF
 				if (line == null) {
 					// Tell user server quit
-					System.out.println("*** Server closed connection");
+					ChatLog.display("*** Server closed connection");
 					break;
 				}
 
+				// The server checking we are still here
+				if (line.equals("/ping")) {
+					childTask.sendPong();
+					continue;
+				}
+
 				// Write the line to the user
-				System.out.println("Server: " + line);
+				ChatLog.display("Server: " + line);
+			}
+		}
+		catch(Exception e) {
+			ChatLog.error(e.toString());
+			System.exit(1);
+		}
+
+		// End the other thread too
+		System.exit(0);
+	}
+
+	// Binary mode version of the read loop in main, displays the same way
+	// Frames are read straight from the channel, file chunks go to disk from there
+	private static void readFrames(InputStream fromSock, SocketChannel channel, TwoWayAsyncMesgClient childTask)
+	{
+		FileTransfer.Receiver files = new FileTransfer.Receiver();
+		try {
+			ChatFrame.Reader frames = new ChatFrame.Reader(channel, fromSock);
+			while (true) {
+				// Read a frame from the socket, null means EOF
+				ByteBuffer frame = frames.next();
+				if (frame == null) {
+					files.connectionClosed();
+					ChatLog.display("*** Server closed connection");
+					break;
+				}
+
+				// Write the message to the user, unless it is part of a file
+				if (files.frameReceived(frame)) {
+					continue;
+				}
+				if (ChatFrame.type(frame) == ChatFrame.PING) {
+					childTask.sendPong();
+					continue;
+				}
+				if (ChatFrame.type(frame) == ChatFrame.MESSAGE) {
+					ChatLog.display("Server: " + ChatFrame.text(ChatFrame.payload(frame)));
+				}
 			}
 		}
 		catch(Exception e) {
-			System.out.println(e);
+			files.connectionClosed();
+			ChatLog.error(e.toString());
 			System.exit(1);
 		}
 
@@ -8,6 +8,16 @@ import java.io.*;
 // Socket related package
 import java.net.*;
 
+// Package for buffers used by the binary protocol
+import java.nio.ByteBuffer;
+
+// Packages for sending files straight from disk to the socket
+import java.nio.channels.*;
+import java.nio.file.*;
+
+// Package for the heartbeat timer
+import java.util.concurrent.TimeUnit;
+
 /*
  * This class does all of two way messaging server's job
  * It simultaneously watches both keyboard and socket for input
@@ -22,6 +32,17 @@ import java.net.*;
  *
  * Since a thread is being created with this class object,
  * this class declaration includes "implements Runnable"
+ *
+ * A client started with --binary is detected from its first bytes,
+ * and then both directions use ChatFrame frames instead of lines
+ *
+ * A client that answers pings says so with a pong right after it
+ * connects. It is then pinged when it sends nothing for a while, and taken
+ * as gone when it stays silent for --idle seconds. Other clients are only
+ * checked on by TCP keepalive
+ *
+ * Everything shown on the screen goes through ChatLog, so a thread
+ * reading the socket never waits for the console
  */
 public class TwoWayAsyncMesgServer implements Runnable
 {
@@ -31,6 +52,23 @@ public class TwoWayAsyncMesgServer implements Runnable
 	// For writing messages to the socket
 	private PrintWriter toSockWriter;
 
+	// For writing ChatFrame frames to the socket instead, in binary mode
+	private OutputStream toSockStream;
+
+	// The socket's channel, files are sent through it in binary mode
+	private SocketChannel toSockChannel;
+
+	// With --log-file, rolled over files kept besides the current one
+	private static final int LOG_FILES_KEPT = 5;
+
+	// When the client last sent anything, for the heartbeat check
+	private static volatile long lastHeard = System.nanoTime();
+
+	// How long a silent client is given, 0 for never; the timer is started
+	// by the client's first pong
+	private static long idleNanos;
+	private static TimerWheel timers;
+
 	// Constructor sets the reader and writer for the child thread
 	public TwoWayAsyncMesgServer(BufferedReader reader, PrintWriter writer)
 	{
@@ -38,6 +76,14 @@ public class TwoWayAsyncMesgServer implements Runnable
 		toSockWriter = writer;
 	}
 
+	// Same, for a connection talking the binary protocol
+	public TwoWayAsyncMesgServer(BufferedReader reader, SocketChannel channel)
+	{
+		fromUserReader = reader;
+		toSockChannel = channel;
+		toSockStream = Channels.newOutputStream(channel);
+	}
+
 	// The child thread starts here
 	public void run()
 	{
@@ -50,15 +96,29 @@ public class TwoWayAsyncMesgServer implements Runnable
 
 				// If we get null, it means EOF, so quit
 				if (line == null) {
-					System.out.println("*** Server closing connection");
+					ChatLog.display("*** Server closing connection");
 					break;
 				}
-				// Write the line to the socket
-				toSockWriter.println(line);
+				// "/send <file> [offset]" sends a file, binary mode only
+				if (line.startsWith("/send ")) {
+					sendFile(line);
+					continue;
+				}
+
+				// Write the line to the socket, as a frame in binary mode
+				// A file being sent holds the stream between its chunks
+				if (toSockStream != null) {
+					synchronized (toSockStream) {
+						ChatFrame.write(toSockStream, ChatFrame.MESSAGE, "", line);
+					}
+				}
+				else {
+					toSockWriter.println(line);
+				}
 			}
 		}
 		catch (Exception e) {
-			System.out.println(e);
+			ChatLog.error(e.toString());
 			System.exit(1);
 		}
 
@@ -66,6 +126,83 @@ public class TwoWayAsyncMesgServer implements Runnable
 		System.exit(0);
 	}
 
+	// Send a file on a thread of its own, so chatting carries on meanwhile
+	private void sendFile(String line)
+	{
+		if (toSockChannel == null) {
+			ChatLog.display("*** Sending files needs the binary protocol (--binary)");
+			return;
+		}
+		String[] words = line.trim().split("\\s+");
+		long offset = -1;
+		try {
+			offset = words.length == 3 ? Long.parseLong(words[2]) : 0;
+		}
+		catch (NumberFormatException e) {
+			// Reported just below
+		}
+		if (words.length < 2 || words.length > 3 || offset < 0) {
+			ChatLog.display("usage: /send <file> [offset to resume from]");
+			return;
+		}
+		Path file = Paths.get(words[1]);
+		long from = offset;
+		Thread sender = new Thread(() -> {
+			try {
+				FileTransfer.send(toSockChannel, toSockStream, file, from);
+			}
+			catch (IOException e) {
+				ChatLog.display("*** Sending " + file + " failed: " + e.getMessage());
+			}
+		});
+		sender.start();
+	}
+
+	// Ask the client to show it is still there, called on the timer thread
+	private void sendPing()
+	{
+		try {
+			if (toSockStream != null) {
+				synchronized (toSockStream) {
+					ChatFrame.write(toSockStream, ChatFrame.PING, "", "");
+				}
+			}
+			else {
+				toSockWriter.println("/ping");
+			}
+		}
+		catch (IOException e) {
+			// The read loop will find out the connection is gone
+		}
+	}
+
+	// A pong from the client, called on the reading thread. The first one
+	// comes unasked, from a client that answers pings: start checking on it
+	private static void heartbeats(TwoWayAsyncMesgServer childTask)
+	{
+		if (timers == null && idleNanos > 0) {
+			timers = new TimerWheel("idle-timer", 100, TimeUnit.MILLISECONDS, 512);
+			timers.schedule(() -> checkIdle(childTask), idleNanos / 3, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	// Runs on the timer thread: ping a quiet client, give up on a silent one
+	private static void checkIdle(TwoWayAsyncMesgServer childTask)
+	{
+		long pingAfter = idleNanos / 3;
+		long silent = System.nanoTime() - lastHeard;
+		if (silent >= idleNanos) {
+			ChatLog.display("*** Client timed out");
+			System.exit(0);
+		}
+		long next = pingAfter - silent;
+		if (silent >= pingAfter) {
+			childTask.sendPing();
+			next = Math.min(pingAfter, idleNanos - silent);
+		}
+		timers.schedule(() -> checkIdle(childTask), next, TimeUnit.NANOSECONDS);
+	}
+
 	/*
 	 * The messaging server program starts from here.
 	 * It sets up streams for reading & writing from keyboard and socket
@@ -74,25 +211,72 @@ public class TwoWayAsyncMesgServer implements Runnable
 	 */
 	public static void main(String args[])
 	{
-		// Server needs a port to listen on
-		if (args.length != 1) {
-			System.out.println("usage: java TwoWayAsyncMesgServer <port>");
+		// Server needs a port to listen on, --virtual runs the child on a virtual thread
+		// --idle sets how long a silent client that answers pings is given,
+		// 0 turns heartbeats off. --log-level and --log-file work as for GroupChatServer
+		boolean virtual = false;
+		long idleSeconds = 90;
+		Path logFile = null;
+		long logFileBytes = 64L << 20;
+		try {
+			for (int i = 1; i < args.length; i++) {
+				if (args[i].equals("--virtual")) {
+					virtual = true;
+				}
+				else if (args[i].equals("--idle")) {
+					idleSeconds = Long.parseLong(args[++i]);
+				}
+				else if (args[i].equals("--log-level")) {
+					ChatLog.setLevel(LogLevel.fromName(args[++i]));
+				}
+				else if (args[i].equals("--log-file")) {
+					logFile = Paths.get(args[++i]);
+				}
+				else if (args[i].equals("--log-file-mb")) {
+					logFileBytes = Long.parseLong(args[++i]) << 20;
+				}
+				else {
+					throw new IllegalArgumentException(args[i]);
+				}
+			}
+		}
+		catch (RuntimeException e) {
+			args = new String[0];
+		}
+		if (args.length < 1 || idleSeconds < 0 || logFileBytes < 1) {
+			System.out.println("usage: java TwoWayAsyncMesgServer <port> [--virtual] [--idle <seconds>]\n"
+					+ "           [--log-level debug|info|warn|error] [--log-file <path> [--log-file-mb <MB>]]");
 			System.exit(1);
 		}
 
+		// Log lines can go to a file, what is shown to the user stays on the screen
+		if (logFile != null) {
+			try {
+				ChatLog.toFile(logFile, logFileBytes, LOG_FILES_KEPT);
+			}
+			catch (IOException e) {
+				System.out.println("Cannot open the log file: " + e.getMessage());
+				System.exit(1);
+			}
+		}
+
 		// Get the port on which server should listen */
 		int serverPort = Integer.parseInt(args[0]);
+		idleNanos = TimeUnit.SECONDS.toNanos(idleSeconds);
 
 		// Be prepared to catch socket related exceptions
 		Socket clientSock = null;
 		try {
 			// Create a server socket with the given port
-			ServerSocket serverSocket = new ServerSocket(serverPort);
+			// It is a channel so files can be sent with transferTo
+			ServerSocketChannel serverSocket = ServerSocketChannel.open();
+			serverSocket.bind(new InetSocketAddress(serverPort));
 
 			// Wait for a client and accept it
-			System.out.println("Waiting for a client ...");
-			clientSock = serverSocket.accept();
-			System.out.println("Connected to a client at ('" +
+			ChatLog.display("Waiting for a client ...");
+			clientSock = serverSocket.accept().socket();
+			clientSock.setKeepAlive(true);
+			ChatLog.display("Connected to a client at ('" +
 									((InetSocketAddress) clientSock.getRemoteSocketAddress()).getAddress().getHostAddress()
 									+ "', '" +
 									((InetSocketAddress) clientSock.getRemoteSocketAddress()).getPort()
@@ -100,35 +284,63 @@ public class TwoWayAsyncMesgServer implements Runnable
 									);
 		}
 		catch(Exception e) {
-			System.out.println(e);
+			ChatLog.error(e.toString());
 			System.exit(1);
 		}
 
 		// Set up a thread to read from user and send to client
+		BufferedInputStream fromSock = null;
+		boolean binary = false;
+		TwoWayAsyncMesgServer childTask = null;
 		try {
-			// Prepare to write to socket with auto flush on
-			PrintWriter toSockWriter =
-					new PrintWriter(clientSock.getOutputStream(), true);
+			fromSock = new BufferedInputStream(clientSock.getInputStream());
+
+			// A binary client sends the preamble right away, a line client
+			// may stay quiet, so only wait a moment for it
+			clientSock.setSoTimeout(1000);
+			try {
+				binary = ChatFrame.acceptPreamble(fromSock, clientSock.getOutputStream()) > 0;
+			}
+			catch (SocketTimeoutException e) {
+				fromSock.reset();
+			}
+			clientSock.setSoTimeout(0);
 
 			// Prepare to read from keyboard
 			BufferedReader fromUserReader = new BufferedReader(
 					new InputStreamReader(System.in));
 
 			// Spawn a thread to read from user and write to socket
-			Thread child = new Thread(
-					new TwoWayAsyncMesgServer(fromUserReader, toSockWriter));
-			child.start();
+			if (binary) {
+				childTask = new TwoWayAsyncMesgServer(fromUserReader, clientSock.getChannel());
+			}
+			else {
+				// Prepare to write to socket with auto flush on
+				PrintWriter toSockWriter =
+						new PrintWriter(clientSock.getOutputStream(), true);
+				childTask = new TwoWayAsyncMesgServer(fromUserReader, toSockWriter);
+			}
+			if (virtual) {
+				VirtualThreads.start(childTask);
+			}
+			else {
+				Thread child = new Thread(childTask);
+				child.start();
+			}
 		}
 		catch(Exception e) {
-			System.out.println(e);
+			ChatLog.error(e.toString());
 			System.exit(1);
 		}
 
 		// Now parent thread reads from client and display to user
+		if (binary) {
+			readFrames(fromSock, clientSock.getChannel(), childTask);
+		}
 		try {
 			// Prepare to read from socket
 			BufferedReader fromSockReader = new BufferedReader(
-					new InputStreamReader(clientSock.getInputStream()));
+					new InputStreamReader(fromSock));
 
 			// Keep doing till server is done
 			while (true) {
@@ -138,20 +350,67 @@ public class TwoWayAsyncMesgServer implements Runnable
 				// If we get null, it means EOF
 				if (line == null) {
 					// Tell user client quit
-					System.out.println("*** Client closed connection");
+					ChatLog.display("*** Client closed connection");
 					break;
 				}
+				lastHeard = System.nanoTime();
+
+				// Heartbeat answers are not for the user
+				if (line.equals("/pong")) {
+					heartbeats(childTask);
+					continue;
+				}
 
 				// Write the line to the user
-				System.out.println("Client: " + line);
+				ChatLog.display("Client: " + line);
+			}
+		}
+		catch(Exception e) {
+			ChatLog.error(e.toString());
+			System.exit(1);
+		}
+
+		// End the other thread too
+		System.exit(0);
+	}
+
+	// Binary mode version of the read loop in main, displays the same way
+	// Frames are read straight from the channel, file chunks go to disk from there
+	private static void readFrames(InputStream fromSock, SocketChannel channel, TwoWayAsyncMesgServer childTask)
+	{
+		FileTransfer.Receiver files = new FileTransfer.Receiver();
+		try {
+			ChatFrame.Reader frames = new ChatFrame.Reader(channel, fromSock);
+			while (true) {
+				// Read a frame from the socket, null means EOF
+				ByteBuffer frame = frames.next();
+				if (frame == null) {
+					files.connectionClosed();
+					ChatLog.display("*** Client closed connection");
+					break;
+				}
+				lastHeard = System.nanoTime();
+				if (ChatFrame.type(frame) == ChatFrame.PONG) {
+					heartbeats(childTask);
+					continue;
+				}
+
+				// Write the message to the user, unless it is part of a file
+				if (files.frameReceived(frame)) {
+					continue;
+				}
+				if (ChatFrame.type(frame) == ChatFrame.MESSAGE) {
+					ChatLog.display("Client: " + ChatFrame.text(ChatFrame.payload(frame)));
+				}
 			}
 		}
 		catch(Exception e) {
-			System.out.println(e);
+			files.connectionClosed();
+			ChatLog.error(e.toString());
 			System.exit(1);
 		}
 
 		// End the other thread too
-		System.exit(0); 
+		System.exit(0);
 	}
 }
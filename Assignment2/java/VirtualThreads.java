@@ -0,0 +1,51 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * This class starts tasks on virtual threads when the JVM has them (Java 21+)
+ * The programs still compile and run on older JDKs, so the Java 21 API is
+ * looked up by reflection and we fall back to ordinary platform threads
+ */
+public class VirtualThreads {
+    private static final Method NEW_EXECUTOR = lookup(Executors.class, "newVirtualThreadPerTaskExecutor");
+    private static final Method START_THREAD = lookup(Thread.class, "startVirtualThread", Runnable.class);
+
+    private static Method lookup(Class<?> type, String name, Class<?>... params) {
+        try {
+            return type.getMethod(name, params);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    public static boolean isSupported() {
+        return NEW_EXECUTOR != null;
+    }
+
+    // Executor with one virtual thread per task, or a cached platform pool before Java 21
+    public static ExecutorService newExecutor() {
+        if (NEW_EXECUTOR != null) {
+            try {
+                return (ExecutorService) NEW_EXECUTOR.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                ChatLog.warn("Virtual threads unavailable: " + e);
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    // Start the task on a virtual thread, or a platform thread before Java 21
+    public static Thread start(Runnable task) {
+        if (START_THREAD != null) {
+            try {
+                return (Thread) START_THREAD.invoke(null, task);
+            } catch (ReflectiveOperationException e) {
+                ChatLog.warn("Virtual threads unavailable: " + e);
+            }
+        }
+        Thread thread = new Thread(task);
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,132 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/*
+ * This class lets the JMH benchmarks reach the chat code
+ * JMH will not run benchmarks in the default package, and classes in a
+ * named package cannot see the default package, so the benchmarks (package
+ * benchmarks) look this class up once and call the functions it hands out
+ */
+public class ChatHooks {
+    // A client that throws away whatever is queued for it, so only the
+    // server side of a broadcast is measured
+    private static class Sink extends ChatConnection {
+        Sink(String name, boolean binary) {
+            super(16, SlowConsumerPolicy.DROP_OLDEST);
+            this.username = name;
+            this.binary = binary;
+        }
+
+        protected void wakeWriter() {
+            pollOutbound();
+        }
+
+        protected void throttle(long nanos) {
+        }
+
+        public boolean isClosed() {
+            return false;
+        }
+
+        public void close() {
+        }
+    }
+
+    // Splits a buffer into lines the way the --nio reactor does, returns total chars
+    public static ToIntFunction<ByteBuffer> lineScanner() {
+        return buffer -> {
+            int chars = 0;
+            String line;
+            while ((line = GroupChatReactor.nextLine(buffer)) != null) {
+                chars += line.length();
+            }
+            return chars;
+        };
+    }
+
+    // Reads frames the way the threaded server does for binary clients, returns payload bytes
+    public static ToIntFunction<InputStream> frameReader() {
+        return in -> {
+            try {
+                ChatFrame.Reader frames = new ChatFrame.Reader(in);
+                int bytes = 0;
+                ByteBuffer frame;
+                while ((frame = frames.next()) != null) {
+                    bytes += ChatFrame.payload(frame).remaining();
+                }
+                return bytes;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    // The messages as one stream of MESSAGE frames
+    public static byte[] frames(String[] messages) {
+        int size = 0;
+        ByteBuffer[] frames = new ByteBuffer[messages.length];
+        for (int i = 0; i < messages.length; i++) {
+            frames[i] = ChatFrame.encode(ChatFrame.MESSAGE, "", messages[i]);
+            size += frames[i].remaining();
+        }
+        ByteBuffer all = ByteBuffer.allocate(size);
+        for (ByteBuffer frame : frames) {
+            all.put(frame);
+        }
+        return all.array();
+    }
+
+    // broadcastMessage on a server with that many members, some of them binary
+    public static BiConsumer<String, String> broadcaster(int members, int binaryMembers, boolean direct) {
+        GroupChatServer server = new GroupChatServer(null, null);
+        server.directBuffers = direct;
+        for (int i = 0; i < members; i++) {
+            server.clients.add(new Sink("user" + i, i < binaryMembers));
+        }
+        return server::broadcastMessage;
+    }
+
+    // A chat message into one room of a server whose clients are spread evenly over that many rooms
+    public static BiConsumer<String, String> roomBroadcaster(int clients, int rooms, boolean direct) {
+        GroupChatServer server = new GroupChatServer(null, null);
+        server.directBuffers = direct;
+        for (int i = 0; i < clients; i++) {
+            Sink client = new Sink("user" + i, false);
+            server.clients.add(client);
+            server.clientJoined(client);
+            if (i % rooms != 0) {
+                server.command(client, "/join room" + i % rooms);
+            }
+        }
+        return (sender, message) -> server.broadcast(GroupChatServer.LOBBY, new ChatMessage(sender, message, direct));
+    }
+
+    // What a broadcast cost per recipient before messages were encoded once
+    public static BiConsumer<String, String> perRecipientEncoder(int members) {
+        return (sender, message) -> {
+            for (int i = 0; i < members; i++) {
+                ByteBuffer.wrap((sender + ": " + message + "\n").getBytes(ChatConnection.CHARSET));
+            }
+        };
+    }
+
+    // Line form of a message typed by a line client
+    public static Function<String, ByteBuffer> lineEncoder(String sender, boolean direct) {
+        return text -> new ChatMessage(sender, text, direct).line();
+    }
+
+    // Frame form of a message typed by a line client
+    public static Function<String, ByteBuffer> frameEncoder(String sender, boolean direct) {
+        return text -> new ChatMessage(sender, text, direct).frame();
+    }
+
+    // Line form of a message that arrived as frame payload bytes
+    public static Function<ByteBuffer, ByteBuffer> payloadToLine(String sender, boolean direct) {
+        return payload -> new ChatMessage(sender, payload, direct).line();
+    }
+}
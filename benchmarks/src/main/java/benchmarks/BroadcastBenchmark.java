@@ -0,0 +1,40 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * One GroupChatServer.broadcastMessage call, encoding plus queueing the
+ * message for every member; the members throw their queue away so no
+ * socket I/O is measured
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+    @Param({ "10", "100", "1000" })
+    public int members;
+
+    // Share of members talking the binary protocol, in percent
+    @Param({ "0", "50" })
+    public int binaryPercent;
+
+    private BiConsumer<String, String> broadcaster;
+    private String message;
+
+    @Setup
+    public void setup() {
+        broadcaster = Hooks.get("broadcaster", members, members * binaryPercent / 100, true);
+        message = Hooks.messages(1)[0];
+    }
+
+    @Benchmark
+    public void broadcast() {
+        broadcaster.accept("alice", message);
+    }
+}
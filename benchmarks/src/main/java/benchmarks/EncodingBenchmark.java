@@ -0,0 +1,61 @@
+package benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Formatting and encoding one chat message for the wire, in each form the
+ * server produces, plus the old encode-per-recipient cost for 100 members
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodingBenchmark {
+    @Param({ "false", "true" })
+    public boolean direct;
+
+    private String message;
+    private ByteBuffer payload;
+    private Function<String, ByteBuffer> lineEncoder;
+    private Function<String, ByteBuffer> frameEncoder;
+    private Function<ByteBuffer, ByteBuffer> payloadToLine;
+    private BiConsumer<String, String> perRecipient;
+
+    @Setup
+    public void setup() {
+        message = Hooks.messages(1)[0];
+        payload = ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8));
+        lineEncoder = Hooks.get("lineEncoder", "alice", direct);
+        frameEncoder = Hooks.get("frameEncoder", "alice", direct);
+        payloadToLine = Hooks.get("payloadToLine", "alice", direct);
+        perRecipient = Hooks.get("perRecipientEncoder", 100);
+    }
+
+    @Benchmark
+    public ByteBuffer line() {
+        return lineEncoder.apply(message);
+    }
+
+    @Benchmark
+    public ByteBuffer frame() {
+        return frameEncoder.apply(message);
+    }
+
+    @Benchmark
+    public ByteBuffer payloadToLine() {
+        return payloadToLine.apply(payload);
+    }
+
+    @Benchmark
+    public void perRecipient100() {
+        perRecipient.accept("alice", message);
+    }
+}
@@ -0,0 +1,35 @@
+package benchmarks;
+
+import java.lang.reflect.Method;
+
+/*
+ * Looks up the factory methods of the default package ChatHooks class
+ * Only used from @Setup methods, never inside a measured call
+ */
+final class Hooks {
+    private Hooks() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T get(String name, Object... args) {
+        try {
+            for (Method method : Class.forName("ChatHooks").getMethods()) {
+                if (method.getName().equals(name) && method.getParameterCount() == args.length) {
+                    return (T) method.invoke(null, args);
+                }
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("cannot reach ChatHooks." + name, e);
+        }
+        throw new IllegalStateException("no ChatHooks." + name);
+    }
+
+    // Chat lines of typical length, the same for every benchmark
+    static String[] messages(int count) {
+        String[] messages = new String[count];
+        for (int i = 0; i < count; i++) {
+            messages[i] = "message " + i + " the quick brown fox jumps over the lazy dog";
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,63 @@
+package benchmarks;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Splitting 1000 received chat messages out of a byte stream:
+ * BufferedReader.readLine (threaded server, all clients), byte scanning
+ * (--nio reactor) and ChatFrame.Reader (binary protocol)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineFramingBenchmark {
+    private static final int MESSAGES = 1000;
+
+    private byte[] lines;
+    private byte[] frames;
+    private ToIntFunction<ByteBuffer> lineScanner;
+    private ToIntFunction<InputStream> frameReader;
+
+    @Setup
+    public void setup() {
+        String[] messages = Hooks.messages(MESSAGES);
+        lines = (String.join("\n", messages) + "\n").getBytes(Charset.defaultCharset());
+        frames = Hooks.get("frames", (Object) messages);
+        lineScanner = Hooks.get("lineScanner");
+        frameReader = Hooks.get("frameReader");
+    }
+
+    @Benchmark
+    public int readLine() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(lines)));
+        int chars = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            chars += line.length();
+        }
+        return chars;
+    }
+
+    @Benchmark
+    public int byteScan() {
+        return lineScanner.applyAsInt(ByteBuffer.wrap(lines));
+    }
+
+    @Benchmark
+    public int frameReader() {
+        return frameReader.applyAsInt(new ByteArrayInputStream(frames));
+    }
+}
@@ -0,0 +1,39 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * One chat message into one room while 10000 clients are spread over
+ * more and more rooms; the cost should follow the room's size, not the
+ * number of clients on the server
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoomBroadcastBenchmark {
+    @Param({ "10000" })
+    public int clients;
+
+    @Param({ "1", "10", "100", "1000" })
+    public int rooms;
+
+    private BiConsumer<String, String> broadcaster;
+    private String message;
+
+    @Setup
+    public void setup() {
+        broadcaster = Hooks.get("roomBroadcaster", clients, rooms, true);
+        message = Hooks.messages(1)[0];
+    }
+
+    @Benchmark
+    public void broadcast() {
+        broadcaster.accept("alice", message);
+    }
+}